@@ -85,9 +85,11 @@ var idCounter = 0;
 /**
  * FileTransfer uploads a file to a remote server.
  * @constructor
+ * @param id {String} Optional transfer id, which must be unique; needed to reattach to a
+ *                    persistent download after the page reloads
  */
-var FileTransfer = function() {
-    this._id = ++idCounter;
+var FileTransfer = function(id) {
+    this._id = id || ++idCounter;
     this.onprogress = null; // optional callback
 };
 
@@ -164,7 +166,7 @@ FileTransfer.prototype.upload = function(filePath, server, successCallback, erro
             }
         }
     };
-    exec(win, fail, 'FileTransfer', 'upload', [filePath, server, fileKey, fileName, mimeType, params, trustAllHosts, chunkedMode, headers, this._id, httpMethod]);
+    exec(win, fail, 'FileTransfer', 'upload', [filePath, server, fileKey, fileName, mimeType, params, trustAllHosts, chunkedMode, headers, this._id, httpMethod, options || null]);
 };
 
 /**
@@ -178,7 +180,6 @@ FileTransfer.prototype.upload = function(filePath, server, successCallback, erro
  */
 FileTransfer.prototype.download = function(source, target, successCallback, errorCallback, trustAllHosts, options) {
     argscheck.checkArgs('ssFF*', 'FileTransfer.download', arguments);
-    var self = this;
 
     var basicAuthHeader = getBasicAuthHeader(source);
     if (basicAuthHeader) {
@@ -198,10 +199,26 @@ FileTransfer.prototype.download = function(source, target, successCallback, erro
         headers = convertHeadersToArray(headers);
     }
 
-    var win = function(result) {
+    exec(downloadWin(this, successCallback), downloadFail(errorCallback), 'FileTransfer', 'download', [source, target, trustAllHosts, this._id, headers, options || null]);
+};
+
+/**
+ * Attaches to a download that was started with the "persistent" option by a page that has
+ * since been reloaded, using the id this FileTransfer was created with. The callbacks and
+ * onprogress are called as if this object had started the download.
+ * @param successCallback (Function}  Callback to be invoked when the download has completed
+ * @param errorCallback {Function}    Callback to be invoked upon error, or if there is no such download
+ */
+FileTransfer.prototype.reattach = function(successCallback, errorCallback) {
+    argscheck.checkArgs('FF', 'FileTransfer.reattach', arguments);
+    exec(downloadWin(this, successCallback), downloadFail(errorCallback), 'FileTransfer', 'reattach', [this._id]);
+};
+
+function downloadWin(transfer, successCallback) {
+    return function(result) {
         if (typeof result.lengthComputable != "undefined") {
-            if (self.onprogress) {
-                return self.onprogress(newProgressEvent(result));
+            if (transfer.onprogress) {
+                return transfer.onprogress(newProgressEvent(result));
             }
         } else if (successCallback) {
             var entry = null;
@@ -220,14 +237,14 @@ FileTransfer.prototype.download = function(source, target, successCallback, erro
             successCallback(entry);
         }
     };
+}
 
-    var fail = errorCallback && function(e) {
+function downloadFail(errorCallback) {
+    return errorCallback && function(e) {
         var error = new FileTransferError(e.code, e.source, e.target, e.http_status, e.body, e.exception);
         errorCallback(error);
     };
-
-    exec(win, fail, 'FileTransfer', 'download', [source, target, trustAllHosts, this._id, headers]);
-};
+}
 
 /**
  * Aborts the ongoing file transfer on this object. The original error
@@ -237,6 +254,21 @@ FileTransfer.prototype.abort = function() {
     exec(null, null, 'FileTransfer', 'abort', [this._id]);
 };
 
+/**
+ * Holds back the file transfer on this object until resume() is called.
+ * A transfer that already started is stopped and queued again.
+ */
+FileTransfer.prototype.pause = function() {
+    exec(null, null, 'FileTransfer', 'pause', [this._id]);
+};
+
+/**
+ * Lets a paused file transfer on this object run again.
+ */
+FileTransfer.prototype.resume = function() {
+    exec(null, null, 'FileTransfer', 'resume', [this._id]);
+};
+
 module.exports = FileTransfer;
 
 });
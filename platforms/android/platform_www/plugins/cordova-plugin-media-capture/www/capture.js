@@ -21,7 +21,8 @@ cordova.define("cordova-plugin-media-capture.capture", function(require, exports
 */
 
 var exec = require('cordova/exec'),
-    MediaFile = require('./MediaFile');
+    MediaFile = require('./MediaFile'),
+    CaptureError = require('./CaptureError');
 
 /**
  * Launches a capture of different types.
@@ -93,6 +94,26 @@ Capture.prototype.captureVideo = function(successCallback, errorCallback, option
     _capture("captureVideo", successCallback, errorCallback, options);
 };
 
+/**
+ * Request capture format data for several files at once.
+ *
+ * @param {MediaFile[]} mediaFiles
+ * @param {Function} successCB called with the format data of each file, in order
+ * @param {Function} errorCB
+ */
+Capture.prototype.getFormatData = function(mediaFiles, successCallback, errorCallback) {
+    var files = [];
+    var i;
+    for (i = 0; i < mediaFiles.length; i++) {
+        if (typeof mediaFiles[i].fullPath === "undefined" || mediaFiles[i].fullPath === null) {
+            errorCallback(new CaptureError(CaptureError.CAPTURE_INVALID_ARGUMENT));
+            return;
+        }
+        files.push([mediaFiles[i].localURL, mediaFiles[i].type]);
+    }
+    exec(successCallback, errorCallback, "Capture", "getFormatDataList", [files]);
+};
+
 
 module.exports = new Capture();
 
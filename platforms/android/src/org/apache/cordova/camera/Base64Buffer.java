@@ -0,0 +1,120 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * An output stream that Base64-encodes what is written to it as it arrives.
+ *
+ * Images are compressed straight into this stream, so the compressed image never exists in
+ * memory as a whole: only its encoding does, as ASCII in a buffer that is sized up front from an
+ * estimate and grows if the estimate was too small. toString() then makes the one copy that
+ * becomes the result string.
+ */
+class Base64Buffer extends OutputStream {
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private byte[] encoded;
+    private int length;
+    // Bytes waiting for a complete group of three
+    private int pending;
+    private int pendingCount;
+
+    /**
+     * @param expectedInputLength estimated number of bytes that will be written
+     */
+    Base64Buffer(int expectedInputLength) {
+        encoded = new byte[encodedLength(Math.max(expectedInputLength, 3))];
+    }
+
+    static int encodedLength(int inputLength) {
+        return (inputLength + 2) / 3 * 4;
+    }
+
+    @Override
+    public void write(int b) {
+        pending = (pending << 8) | (b & 0xff);
+        if (++pendingCount == 3) {
+            ensureCapacity(4);
+            encodeGroup(pending);
+            pending = 0;
+            pendingCount = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) {
+        int end = offset + count;
+        // Complete a group started by an earlier write.
+        while (pendingCount != 0 && offset < end) {
+            write(buffer[offset++]);
+        }
+        int groups = (end - offset) / 3;
+        ensureCapacity(groups * 4);
+        for (int i = 0; i < groups; i++) {
+            encodeGroup(((buffer[offset] & 0xff) << 16) | ((buffer[offset + 1] & 0xff) << 8) | (buffer[offset + 2] & 0xff));
+            offset += 3;
+        }
+        while (offset < end) {
+            write(buffer[offset++]);
+        }
+    }
+
+    private void encodeGroup(int group) {
+        encoded[length++] = ALPHABET[(group >> 18) & 0x3f];
+        encoded[length++] = ALPHABET[(group >> 12) & 0x3f];
+        encoded[length++] = ALPHABET[(group >> 6) & 0x3f];
+        encoded[length++] = ALPHABET[group & 0x3f];
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > encoded.length) {
+            // Double, as the estimate is kept low rather than close.
+            byte[] grown = new byte[Math.max(length + extra, (int) Math.min((long) encoded.length << 1, Integer.MAX_VALUE - 8))];
+            System.arraycopy(encoded, 0, grown, 0, length);
+            encoded = grown;
+        }
+    }
+
+    /**
+     * Returns the encoding of everything written so far, padded to a multiple of four
+     * characters. No more bytes may be written afterwards.
+     */
+    @Override
+    public String toString() {
+        if (pendingCount > 0) {
+            ensureCapacity(4);
+            int group = pending << (8 * (3 - pendingCount));
+            encodeGroup(group);
+            encoded[length - 1] = '=';
+            if (pendingCount == 1) {
+                encoded[length - 2] = '=';
+            }
+            pendingCount = 0;
+        }
+        try {
+            return new String(encoded, 0, length, "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
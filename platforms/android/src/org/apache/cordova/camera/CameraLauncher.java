@@ -18,7 +18,6 @@
 */
 package org.apache.cordova.camera;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -30,6 +29,8 @@ import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import org.apache.cordova.BitmapPool;
+import org.apache.cordova.ByteArrayPool;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaResourceApi;
@@ -55,7 +56,6 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.provider.MediaStore;
-import android.util.Base64;
 import android.util.Log;
 import android.content.pm.PackageManager;
 /**
@@ -88,6 +88,7 @@ public class CameraLauncher extends CordovaPlugin implements MediaScannerConnect
     public static final int SAVE_TO_ALBUM_SEC = 1;
 
     private static final String LOG_TAG = "CameraLauncher";
+    private static final int DEFAULT_CACHE_SIZE_MB = 20;
 
     //Where did this come from?
     private static final int CROP_CAMERA = 100;
@@ -113,6 +114,13 @@ public class CameraLauncher extends CordovaPlugin implements MediaScannerConnect
     private MediaScannerConnection conn;    // Used to update gallery app with newly-written files
     private Uri scanMe;                     // Uri of image to be added to content store
     private Uri croppedUri;
+    private DerivativeCache derivativeCache;    // Processed copies of picked images
+
+    @Override
+    protected void pluginInitialize() {
+        long cacheSize = preferences.getInteger("CameraCacheSize", DEFAULT_CACHE_SIZE_MB) * 1024L * 1024L;
+        derivativeCache = new DerivativeCache(new File(cordova.getActivity().getCacheDir(), "cdv-camera-derivatives"), cacheSize);
+    }
 
     /**
      * Executes the request and returns PluginResult.
@@ -451,11 +459,16 @@ public class CameraLauncher extends CordovaPlugin implements MediaScannerConnect
 
         // If sending base64 image back
         if (destType == DATA_URL) {
-            bitmap = getScaledBitmap(sourcePath);
+            bitmap = getScaledBitmap(sourcePath, this.correctOrientation ? rotate : 0);
 
             if (bitmap == null) {
                 // Try to get the bitmap from intent.
                 bitmap = (Bitmap)intent.getExtras().get("data");
+                if (bitmap != null && rotate != 0 && this.correctOrientation) {
+                    bitmap = getRotatedBitmap(rotate, bitmap, exif);
+                }
+            } else if (this.orientationCorrected) {
+                exif.resetOrientation();
             }
 
             // Double-check the bitmap.
@@ -465,10 +478,6 @@ public class CameraLauncher extends CordovaPlugin implements MediaScannerConnect
                 return;
             }
 
-            if (rotate != 0 && this.correctOrientation) {
-                bitmap = getRotatedBitmap(rotate, bitmap, exif);
-            }
-
             this.processPicture(bitmap, this.encodingType);
 
             if (!this.saveToPhotoAlbum) {
@@ -478,9 +487,10 @@ public class CameraLauncher extends CordovaPlugin implements MediaScannerConnect
 
         // If sending filename back
         else if (destType == FILE_URI || destType == NATIVE_URI) {
-            // If all this is true we shouldn't compress the image.
+            // If all this is true we shouldn't compress the image. A JPEG that is already upright
+            // needs no correction either, so it is returned as taken rather than re-encoded.
             if (this.targetHeight == -1 && this.targetWidth == -1 && this.mQuality == 100 &&
-                    !this.correctOrientation) {
+                    (!this.correctOrientation || (this.encodingType == JPEG && rotate == 0))) {
 
                 // If we saved the uncompressed photo to the album, we can just
                 // return the URI we already created
@@ -499,7 +509,7 @@ public class CameraLauncher extends CordovaPlugin implements MediaScannerConnect
                 }
             } else {
                 Uri uri = Uri.fromFile(createCaptureFile(this.encodingType, System.currentTimeMillis() + ""));
-                bitmap = getScaledBitmap(sourcePath);
+                bitmap = getScaledBitmap(sourcePath, this.correctOrientation ? rotate : 0);
 
                 // Double-check the bitmap.
                 if (bitmap == null) {
@@ -508,8 +518,8 @@ public class CameraLauncher extends CordovaPlugin implements MediaScannerConnect
                     return;
                 }
 
-                if (rotate != 0 && this.correctOrientation) {
-                    bitmap = getRotatedBitmap(rotate, bitmap, exif);
+                if (this.orientationCorrected) {
+                    exif.resetOrientation();
                 }
 
                 // Add compressed version of captured image to returned media store Uri
@@ -559,7 +569,7 @@ private void refreshGallery(Uri contentUri)
 }
 
 
-private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
+private String ouputModifiedBitmap(Bitmap bitmap, Uri uri, String derivativeKey) throws IOException {
         // Some content: URIs do not map to file paths (e.g. picasa).
         String realPath = FileHelper.getRealPath(uri, this.cordova);
 
@@ -568,15 +578,27 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
             realPath.substring(realPath.lastIndexOf('/') + 1) :
             "modified." + (this.encodingType == JPEG ? "jpg" : "png");
 
-        String modifiedPath = getTempDirectoryPath() + "/" + fileName;
+        String modifiedPath = derivativeKey != null ?
+            derivativeCache.begin(derivativeKey, fileName).getAbsolutePath() :
+            getTempDirectoryPath() + "/" + fileName;
 
-        OutputStream os = new FileOutputStream(modifiedPath);
         CompressFormat compressFormat = this.encodingType == JPEG ?
                 CompressFormat.JPEG :
                 CompressFormat.PNG;
 
-        bitmap.compress(compressFormat, this.mQuality, os);
-        os.close();
+        try {
+            OutputStream os = new FileOutputStream(modifiedPath);
+            try {
+                bitmap.compress(compressFormat, this.mQuality, os);
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            if (derivativeKey != null) {
+                derivativeCache.abort(new File(modifiedPath));
+            }
+            throw e;
+        }
 
         if (realPath != null && this.encodingType == JPEG) {
             // Create an ExifHelper to save the exif data that is lost during compression
@@ -594,9 +616,28 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
                 e.printStackTrace();
             }
         }
+        if (derivativeKey != null) {
+            modifiedPath = derivativeCache.commit(derivativeKey, new File(modifiedPath)).getAbsolutePath();
+        }
         return modifiedPath;
     }
 
+    /**
+     * Returns the key under which the processed copy of a picked image is cached, or null if the
+     * image can't be cached because it isn't a local file whose modifications can be detected.
+     */
+    private String getDerivativeKey(String uriString, String fileLocation) {
+        if (fileLocation == null) {
+            return null;
+        }
+        File source = new File(fileLocation);
+        if (source.lastModified() == 0) {
+            return null;
+        }
+        return DerivativeCache.getKey(uriString, source, this.targetWidth, this.targetHeight, this.mQuality,
+                this.encodingType, this.correctOrientation);
+    }
+
 
 
 /**
@@ -641,9 +682,28 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
                     this.failPicture("Unable to retrieve path to picture!");
                     return;
                 }
+                // A copy processed with the same options may already be cached
+                String derivativeKey = null;
+                if (destType == FILE_URI || destType == NATIVE_URI) {
+                    derivativeKey = getDerivativeKey(uriString, fileLocation);
+                    File derivative = derivativeKey != null ? derivativeCache.get(derivativeKey) : null;
+                    if (derivative != null) {
+                        this.callbackContext.success("file://" + derivative.getAbsolutePath());
+                        return;
+                    }
+                }
+                if (this.correctOrientation) {
+                    rotate = getImageOrientation(uri);
+                }
+                // Nothing to scale or rotate, so there is no need to decode the image
+                if ((destType == FILE_URI || destType == NATIVE_URI) && rotate == 0 &&
+                        !(this.targetHeight > 0 && this.targetWidth > 0)) {
+                    this.callbackContext.success(fileLocation);
+                    return;
+                }
                 Bitmap bitmap = null;
                 try {
-                    bitmap = getScaledBitmap(uriString);
+                    bitmap = getScaledBitmap(uriString, rotate);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -653,20 +713,6 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
                     return;
                 }
 
-                if (this.correctOrientation) {
-                    rotate = getImageOrientation(uri);
-                    if (rotate != 0) {
-                        Matrix matrix = new Matrix();
-                        matrix.setRotate(rotate);
-                        try {
-                            bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-                            this.orientationCorrected = true;
-                        } catch (OutOfMemoryError oom) {
-                            this.orientationCorrected = false;
-                        }
-                    }
-                }
-
                 // If sending base64 image back
                 if (destType == DATA_URL) {
                     this.processPicture(bitmap, this.encodingType);
@@ -677,11 +723,21 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
                     // Did we modify the image?
                     if ( (this.targetHeight > 0 && this.targetWidth > 0) ||
                             (this.correctOrientation && this.orientationCorrected) ) {
+                        // A source that changed while it was decoded has a new key, and the
+                        // bitmap may be of either version, so it isn't stored under the old one.
+                        if (derivativeKey != null && !derivativeKey.equals(getDerivativeKey(uriString, fileLocation))) {
+                            derivativeKey = null;
+                        }
                         try {
-                            String modifiedPath = this.ouputModifiedBitmap(bitmap, uri);
-                            // The modified image is cached by the app in order to get around this and not have to delete you
-                            // application cache I'm adding the current system time to the end of the file url.
-                            this.callbackContext.success("file://" + modifiedPath + "?" + System.currentTimeMillis());
+                            String modifiedPath = this.ouputModifiedBitmap(bitmap, uri, derivativeKey);
+                            if (derivativeKey != null) {
+                                // Cached copies are never overwritten, so their URL can be cached too.
+                                this.callbackContext.success("file://" + modifiedPath);
+                            } else {
+                                // The modified image is cached by the app in order to get around this and not have to delete you
+                                // application cache I'm adding the current system time to the end of the file url.
+                                this.callbackContext.success("file://" + modifiedPath + "?" + System.currentTimeMillis());
+                            }
 
                         } catch (Exception e) {
                             e.printStackTrace();
@@ -693,10 +749,9 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
                     }
                 }
                 if (bitmap != null) {
-                    bitmap.recycle();
+                    BitmapPool.getInstance(cordova.getActivity()).put(bitmap);
                     bitmap = null;
                 }
-                System.gc();
             }
         }
     }
@@ -849,16 +904,18 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
             IOException {
         FileInputStream fis = null;
         OutputStream os = null;
+        ByteArrayPool bytePool = ByteArrayPool.getInstance(cordova.getActivity());
+        byte[] buffer = bytePool.get(16 * 1024);
         try {
             fis = new FileInputStream(FileHelper.stripFileProtocol(src.toString()));
             os = this.cordova.getActivity().getContentResolver().openOutputStream(dest);
-            byte[] buffer = new byte[4096];
             int len;
             while ((len = fis.read(buffer)) != -1) {
                 os.write(buffer, 0, len);
             }
             os.flush();
         } finally {
+            bytePool.put(buffer);
             if (os != null) {
                 try {
                     os.close();
@@ -900,15 +957,18 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
     }
 
     /**
-     * Return a scaled bitmap based on the target width and height
+     * Return a bitmap scaled to the target width and height, and rotated clockwise by rotate
+     * degrees. Sets orientationCorrected to whether the rotation could be applied.
      *
      * @param imagePath
+     * @param rotate
      * @return
      * @throws IOException
      */
-    private Bitmap getScaledBitmap(String imageUrl) throws IOException {
-        // If no new width or height were specified return the original bitmap
-        if (this.targetWidth <= 0 && this.targetHeight <= 0) {
+    private Bitmap getScaledBitmap(String imageUrl, int rotate) throws IOException {
+        this.orientationCorrected = false;
+        // If no new width or height were specified and there is nothing to rotate, return the original bitmap
+        if (this.targetWidth <= 0 && this.targetHeight <= 0 && rotate == 0) {
             InputStream fileStream = null;
             Bitmap image = null;
             try {
@@ -929,11 +989,15 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
         // figure out the original width and height of the image
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
+        ByteArrayPool bytePool = ByteArrayPool.getInstance(cordova.getActivity());
+        options.inTempStorage = bytePool.get(16 * 1024);
         InputStream fileStream = null;
         try {
             fileStream = FileHelper.getInputStreamFromUriString(imageUrl, cordova);
             BitmapFactory.decodeStream(fileStream, null, options);
         } finally {
+            bytePool.put(options.inTempStorage);
+            options.inTempStorage = null;
             if (fileStream != null) {
                 try {
                     fileStream.close();
@@ -952,6 +1016,27 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
         // determine the correct aspect ratio
         int[] widthHeight = calculateAspectRatio(options.outWidth, options.outHeight);
 
+        // Scale and rotate in one pass where the image can be decoded by regions.
+        try {
+            fileStream = FileHelper.getInputStreamFromUriString(imageUrl, cordova);
+            Bitmap bitmap = ImageTransform.decode(fileStream, widthHeight[0], widthHeight[1], rotate, this.encodingType == JPEG,
+                    BitmapPool.getInstance(cordova.getActivity()));
+            this.orientationCorrected = rotate != 0;
+            return bitmap;
+        } catch (IOException e) {
+            LOG.d(LOG_TAG, "Cannot decode image by regions, decoding it whole: " + e.getMessage());
+        } catch (OutOfMemoryError oom) {
+            LOG.d(LOG_TAG, "Out of memory while transforming image, decoding it whole");
+        } finally {
+            if (fileStream != null) {
+                try {
+                    fileStream.close();
+                } catch (IOException e) {
+                    LOG.d(LOG_TAG,"Exception while closing file input stream.");
+                }
+            }
+        }
+
         // Load in the smallest bitmap possible that is closest to the size we want
         options.inJustDecodeBounds = false;
         options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, this.targetWidth, this.targetHeight);
@@ -972,7 +1057,18 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
             return null;
         }
 
-        return Bitmap.createScaledBitmap(unscaledBitmap, widthHeight[0], widthHeight[1], true);
+        Bitmap bitmap = Bitmap.createScaledBitmap(unscaledBitmap, widthHeight[0], widthHeight[1], true);
+        if (rotate != 0) {
+            Matrix matrix = new Matrix();
+            matrix.setRotate(rotate);
+            try {
+                bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+                this.orientationCorrected = true;
+            } catch (OutOfMemoryError oom) {
+                // Return the image unrotated rather than crash.
+            }
+        }
+        return bitmap;
     }
 
     /**
@@ -1063,7 +1159,7 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
      */
     private void cleanup(int imageType, Uri oldImage, Uri newImage, Bitmap bitmap) {
         if (bitmap != null) {
-            bitmap.recycle();
+            BitmapPool.getInstance(cordova.getActivity()).put(bitmap);
         }
 
         // Clean up initial camera-written image file.
@@ -1074,8 +1170,6 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
         if (this.saveToPhotoAlbum && newImage != null) {
             this.scanForGallery(newImage);
         }
-
-        System.gc();
     }
 
     /**
@@ -1122,29 +1216,33 @@ private String ouputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
 
     /**
      * Compress bitmap using jpeg, convert to Base64 encoded string, and return to JavaScript.
+     * The image is encoded while it is compressed, so only its encoding is held in memory.
      *
      * @param bitmap
      */
     public void processPicture(Bitmap bitmap, int encodingType) {
-        ByteArrayOutputStream jpeg_data = new ByteArrayOutputStream();
         CompressFormat compressFormat = encodingType == JPEG ?
                 CompressFormat.JPEG :
                 CompressFormat.PNG;
+        // Start from a low guess at the compressed size and let the buffer grow: JPEG photos take
+        // about a tenth of a byte per pixel at quality 30 and a quarter at 90. PNG varies too much
+        // to guess, so it starts from the same eighth of a byte as a low quality JPEG.
+        long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+        long expectedLength = encodingType == JPEG ? pixels * (mQuality + 10) / 400 : pixels / 8;
+        Base64Buffer base64 = new Base64Buffer((int) Math.min(expectedLength, Integer.MAX_VALUE / 2));
 
         try {
-            if (bitmap.compress(compressFormat, mQuality, jpeg_data)) {
-                byte[] code = jpeg_data.toByteArray();
-                byte[] output = Base64.encode(code, Base64.NO_WRAP);
-                String js_out = new String(output);
+            if (bitmap.compress(compressFormat, mQuality, base64)) {
+                String js_out = base64.toString();
+                base64 = null;
                 this.callbackContext.success(js_out);
                 js_out = null;
-                output = null;
-                code = null;
             }
         } catch (Exception e) {
             this.failPicture("Error compressing image.");
+        } catch (OutOfMemoryError e) {
+            this.failPicture("Out of memory while encoding image.");
         }
-        jpeg_data = null;
     }
 
     /**
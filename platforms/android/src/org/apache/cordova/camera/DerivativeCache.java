@@ -0,0 +1,198 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * Keeps the scaled and rotated copies of picked images, so that picking the same image with the
+ * same options again doesn't decode and encode it again.
+ *
+ * A key describes both the source image (its URI, modification time and length) and the options
+ * it was processed with. Each copy lives in a directory named after the hash of its key, under
+ * the file name of its source, and is never written to once it is in place; a changed source or
+ * different options simply make a different key. The directories' modification times record
+ * when they were last used, and the least recently used ones are deleted once the copies
+ * together exceed the maximum size.
+ */
+class DerivativeCache {
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxSize;
+    // Numbers pending copies, so that copies of the same key written at once don't collide
+    private int nextPending;
+    // Names of the pending copies this process is still writing
+    private final HashSet<String> pending = new HashSet<String>();
+
+    DerivativeCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Builds the key of an image processed with the given options.
+     */
+    static String getKey(String uri, File source, int width, int height, int quality, int encoding,
+            boolean correctOrientation) {
+        return uri + '\n' + source.lastModified() + '\n' + source.length() + '\n' + width + 'x' + height
+                + '\n' + quality + '\n' + encoding + '\n' + correctOrientation;
+    }
+
+    /**
+     * Returns the stored copy for a key, or null.
+     */
+    synchronized File get(String key) {
+        File entry = new File(directory, hash(key));
+        File[] files = entry.listFiles();
+        if (files == null || files.length != 1 || files[0].length() == 0) {
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return files[0];
+    }
+
+    /**
+     * Returns the file a new copy should be written to. The copy is only stored once it is
+     * passed to commit().
+     */
+    synchronized File begin(String key, String fileName) throws IOException {
+        File dir = new File(directory, hash(key) + '.' + nextPending++ + TMP_SUFFIX);
+        deleteRecursively(dir);
+        if (!dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        pending.add(dir.getName());
+        return new File(dir, fileName);
+    }
+
+    /**
+     * Stores a copy written to the file returned by begin(), and returns where it is now. If
+     * another copy of the same key was stored meanwhile, that one is kept and returned instead.
+     */
+    synchronized File commit(String key, File written) throws IOException {
+        File stored = get(key);
+        if (stored != null) {
+            abort(written);
+            return stored;
+        }
+        String name = hash(key);
+        File entry = new File(directory, name);
+        deleteRecursively(entry);
+        pending.remove(written.getParentFile().getName());
+        if (!written.getParentFile().renameTo(entry)) {
+            abort(written);
+            throw new IOException("Could not store " + written.getName());
+        }
+        evict(name);
+        return new File(entry, written.getName());
+    }
+
+    /**
+     * Discards a copy written to the file returned by begin().
+     */
+    synchronized void abort(File written) {
+        pending.remove(written.getParentFile().getName());
+        deleteRecursively(written.getParentFile());
+    }
+
+    /*
+     * Deletes the least recently used copies, other than keep, until the rest fit in maxSize.
+     * Copies left half-written by an earlier process are deleted too.
+     */
+    private void evict(String keep) {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long total = 0;
+        for (File entry : entries) {
+            if (entry.getName().endsWith(TMP_SUFFIX)) {
+                if (!pending.contains(entry.getName())) {
+                    deleteRecursively(entry);
+                }
+            } else {
+                total += size(entry);
+            }
+        }
+        if (total <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File oldest : entries) {
+            if (total <= maxSize) {
+                break;
+            }
+            if (oldest.exists() && !oldest.getName().equals(keep) && !oldest.getName().endsWith(TMP_SUFFIX)) {
+                total -= size(oldest);
+                deleteRecursively(oldest);
+            }
+        }
+    }
+
+    private static long size(File entry) {
+        long size = 0;
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
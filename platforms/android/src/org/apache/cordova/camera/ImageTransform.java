@@ -0,0 +1,162 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+
+import org.apache.cordova.BitmapPool;
+
+/**
+ * Scales and rotates an image in a single pass, without ever holding the whole source image.
+ *
+ * The output bitmap is allocated at its final size and orientation up front. The source is then
+ * decoded in horizontal strips with BitmapRegionDecoder, subsampled by the largest power of two
+ * that keeps it at least as large as the output, and each strip is drawn into the output through
+ * one matrix that does the exact scaling and the rotation. Where the platform allows it, all
+ * strips are decoded into the same bitmap. Peak memory is therefore the output plus one strip.
+ * Both bitmaps are taken from the shared pool, and the strip is returned to it.
+ */
+class ImageTransform {
+    // Approximate size of a decoded strip
+    private static final int STRIP_BYTES = 1024 * 1024;
+
+    /**
+     * Decodes an image at the given size, then rotated clockwise by rotate degrees.
+     *
+     * @param in       the encoded image; closed by the caller
+     * @param width    width of the scaled image, before rotation
+     * @param height   height of the scaled image, before rotation
+     * @param rotate   0, 90, 180 or 270
+     * @param opaque   true if the image has no transparency to preserve, e.g. because it will be
+     *                 encoded as JPEG; allows a 16-bit output when memory is short
+     * @param pool     where the output and strip bitmaps come from
+     * @throws IOException if the image can't be decoded by regions, e.g. because of its format
+     */
+    static Bitmap decode(InputStream in, int width, int height, int rotate, boolean opaque, BitmapPool pool) throws IOException {
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(in, false);
+        try {
+            int srcWidth = decoder.getWidth();
+            int srcHeight = decoder.getHeight();
+            int sampleSize = 1;
+            while (srcWidth / (sampleSize * 2) >= width && srcHeight / (sampleSize * 2) >= height) {
+                sampleSize *= 2;
+            }
+
+            boolean sideways = rotate == 90 || rotate == 270;
+            Bitmap.Config config = selectConfig(width, height, opaque);
+            Bitmap output = pool.get(sideways ? height : width, sideways ? width : height, config);
+
+            // Maps source pixels to output pixels.
+            Matrix base = new Matrix();
+            base.setScale(width / (float) srcWidth, height / (float) srcHeight);
+            if (rotate == 90) {
+                base.postRotate(90);
+                base.postTranslate(height, 0);
+            } else if (rotate == 180) {
+                base.postRotate(180);
+                base.postTranslate(width, height);
+            } else if (rotate == 270) {
+                base.postRotate(270);
+                base.postTranslate(0, width);
+            }
+
+            // Strips start at multiples of the sample size, so subsampling stays aligned.
+            int sampledWidth = Math.max(srcWidth / sampleSize, 1);
+            int stripRows = Math.max(STRIP_BYTES / (sampledWidth * 4), 1) * sampleSize;
+
+            Canvas canvas = new Canvas(output);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            Matrix matrix = new Matrix();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            options.inMutable = true;
+            // Bitmaps can only be reused for differently sized regions from KitKat on.
+            boolean reuse = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+            // Subsampled sizes are rounded up; stripRows is a multiple of sampleSize.
+            Bitmap strip = reuse ? pool.get(ceilDiv(srcWidth, sampleSize), stripRows / sampleSize, config) : null;
+            Rect rect = new Rect();
+            Rect src = new Rect();
+            for (int top = 0; top < srcHeight; top += stripRows) {
+                rect.set(0, top, srcWidth, Math.min(top + stripRows, srcHeight));
+                options.inBitmap = reuse ? strip : null;
+                Bitmap decoded;
+                try {
+                    decoded = decoder.decodeRegion(rect, options);
+                } catch (IllegalArgumentException e) {
+                    // The strip bitmap doesn't fit after all.
+                    options.inBitmap = null;
+                    decoded = decoder.decodeRegion(rect, options);
+                }
+                if (decoded == null) {
+                    pool.put(output);
+                    pool.put(strip);
+                    throw new IOException("Could not decode region " + rect);
+                }
+                if (strip != null && decoded != strip) {
+                    pool.put(strip);
+                }
+                strip = decoded;
+
+                // A reused strip keeps its size, so only its top left holds this region, and
+                // whatever lies below it is left over from the previous strip.
+                src.set(0, 0, Math.min(ceilDiv(rect.width(), sampleSize), strip.getWidth()),
+                        Math.min(ceilDiv(rect.height(), sampleSize), strip.getHeight()));
+                matrix.set(base);
+                matrix.preTranslate(0, top);
+                matrix.preScale(sampleSize, sampleSize);
+                canvas.save();
+                canvas.concat(matrix);
+                canvas.drawBitmap(strip, src, src, paint);
+                canvas.restore();
+            }
+            pool.put(strip);
+            return output;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    /*
+     * Full color, unless the output alone would take more than half of the memory left and
+     * there is no transparency to lose.
+     */
+    private static Bitmap.Config selectConfig(int width, int height, boolean opaque) {
+        if (!opaque) {
+            return Bitmap.Config.ARGB_8888;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return (long) width * height * 4 > available / 2 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+}
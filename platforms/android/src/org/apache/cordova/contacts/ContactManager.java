@@ -38,12 +38,17 @@ import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
 
 import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ContactManager extends CordovaPlugin {
 
     private ContactAccessor contactAccessor;
     private CallbackContext callbackContext;        // The callback context from which we were invoked.
     private JSONArray executeArgs;
+    private final Map<String, AtomicBoolean> pagedSearches =    // Cancellation flags of running paged searches
+            new ConcurrentHashMap<String, AtomicBoolean>();
 
     private static final String LOG_TAG = "Contact Query";
 
@@ -64,6 +69,9 @@ public class ContactManager extends CordovaPlugin {
     public static final int SAVE_REQ_CODE = 1;
     public static final int REMOVE_REQ_CODE = 2;
     public static final int PICK_REQ_CODE = 3;
+    public static final int SEARCH_PAGED_REQ_CODE = 4;
+
+    private static final int DEFAULT_CHUNK_SIZE = 50;
 
     public static final String READ = Manifest.permission.READ_CONTACTS;
     public static final String WRITE = Manifest.permission.WRITE_CONTACTS;
@@ -128,6 +136,22 @@ public class ContactManager extends CordovaPlugin {
                 getReadPermission(SEARCH_REQ_CODE);
             }
         }
+        else if (action.equals("searchPaged")) {
+            if(PermissionHelper.hasPermission(this, READ)) {
+                searchPaged(executeArgs);
+            }
+            else
+            {
+                getReadPermission(SEARCH_PAGED_REQ_CODE);
+            }
+        }
+        else if (action.equals("cancelSearch")) {
+            AtomicBoolean cancelled = pagedSearches.get(args.getString(0));
+            if (cancelled != null) {
+                cancelled.set(true);
+            }
+            callbackContext.success();
+        }
         else if (action.equals("save")) {
             if(PermissionHelper.hasPermission(this, WRITE))
             {
@@ -212,6 +236,70 @@ public class ContactManager extends CordovaPlugin {
     }
 
 
+    /**
+     * Searches for contacts, sending them to JavaScript in chunks as they are read.
+     * The search can be stopped early with the cancelSearch action.
+     */
+    private void searchPaged(JSONArray args) throws JSONException
+    {
+        final JSONArray filter = args.getJSONArray(0);
+        final JSONObject options = args.isNull(1) ? null : args.getJSONObject(1);
+        final String searchId = args.getString(2);
+        final CallbackContext searchContext = this.callbackContext;
+
+        final int offset = options == null ? 0 : Math.max(options.optInt("offset", 0), 0);
+        final int limit = options == null ? Integer.MAX_VALUE : options.optInt("limit", Integer.MAX_VALUE);
+        final int chunkSize = options == null ? DEFAULT_CHUNK_SIZE : options.optInt("chunkSize", DEFAULT_CHUNK_SIZE);
+
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        pagedSearches.put(searchId, cancelled);
+        this.cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    boolean completed = contactAccessor.search(filter, options, offset, limit, chunkSize,
+                            new ContactAccessor.SearchListener() {
+                                public boolean onContacts(JSONArray contacts) {
+                                    if (cancelled.get()) {
+                                        return false;
+                                    }
+                                    searchContext.sendPluginResult(createChunkResult(contacts, false));
+                                    return true;
+                                }
+                            });
+                    if (completed && !cancelled.get()) {
+                        searchContext.sendPluginResult(createChunkResult(new JSONArray(), true));
+                    } else {
+                        searchContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, OPERATION_CANCELLED_ERROR));
+                    }
+                } finally {
+                    pagedSearches.remove(searchId);
+                }
+            }
+        });
+    }
+
+    private static PluginResult createChunkResult(JSONArray contacts, boolean done) {
+        JSONObject chunk = new JSONObject();
+        try {
+            chunk.put("contacts", contacts);
+            chunk.put("done", done);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "JSON fail.", e);
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, chunk);
+        result.setKeepCallback(!done);
+        return result;
+    }
+
+    /**
+     * Stop any paged searches that are still running.
+     */
+    public void onDestroy() {
+        for (AtomicBoolean cancelled : pagedSearches.values()) {
+            cancelled.set(true);
+        }
+    }
+
     /**
      * Launches the Contact Picker to select a single contact.
      */
@@ -281,6 +369,9 @@ public class ContactManager extends CordovaPlugin {
             case SEARCH_REQ_CODE:
                 search(executeArgs);
                 break;
+            case SEARCH_PAGED_REQ_CODE:
+                searchPaged(executeArgs);
+                break;
             case SAVE_REQ_CODE:
                 save(executeArgs);
                 break;
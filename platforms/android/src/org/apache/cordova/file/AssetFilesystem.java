@@ -30,66 +30,58 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AssetFilesystem extends Filesystem {
 
     private final AssetManager assetManager;
 
-    // A custom gradle hook creates the cdvasset.manifest file, which speeds up asset listing a tonne.
+    // A custom gradle hook creates the cdvasset.index file, which speeds up asset listing a tonne.
     // See: http://stackoverflow.com/questions/16911558/android-assetmanager-list-incredibly-slow
-    private static Object listCacheLock = new Object();
-    private static boolean listCacheFromFile;
-    private static Map<String, String[]> listCache;
-    private static Map<String, Long> lengthCache;
-
-    private void lazyInitCaches() {
-        synchronized (listCacheLock) {
-            if (listCache == null) {
-                ObjectInputStream ois = null;
-                try {
-                    ois = new ObjectInputStream(assetManager.open("cdvasset.manifest"));
-                    listCache = (Map<String, String[]>) ois.readObject();
-                    lengthCache = (Map<String, Long>) ois.readObject();
-                    listCacheFromFile = true;
-                } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    // Asset manifest won't exist if the gradle hook isn't set up correctly.
-                } finally {
-                    if (ois != null) {
-                        try {
-                            ois.close();
-                        } catch (IOException e) {
-                        }
+    private static Object assetIndexLock = new Object();
+    private static volatile boolean assetIndexLoaded;
+    private static volatile AssetIndex assetIndex;
+    private static final Map<String, String[]> listCache = new ConcurrentHashMap<String, String[]>();
+
+    private AssetIndex lazyInitIndex() {
+        if (!assetIndexLoaded) {
+            synchronized (assetIndexLock) {
+                if (!assetIndexLoaded) {
+                    try {
+                        assetIndex = AssetIndex.open(assetManager);
+                    } catch (IOException e) {
+                        // Asset index won't exist if the gradle hook isn't set up correctly.
+                        Log.w("AssetFilesystem", "Asset index not found. Recursive copies and directory listing will be slow.");
                     }
-                }
-                if (listCache == null) {
-                    Log.w("AssetFilesystem", "Asset manifest not found. Recursive copies and directory listing will be slow.");
-                    listCache = new HashMap<String, String[]>();
+                    assetIndexLoaded = true;
                 }
             }
         }
+        return assetIndex;
     }
 
-    private String[] listAssets(String assetPath) throws IOException {
+    private static String stripSlashes(String assetPath) {
         if (assetPath.startsWith("/")) {
             assetPath = assetPath.substring(1);
         }
         if (assetPath.endsWith("/")) {
             assetPath = assetPath.substring(0, assetPath.length() - 1);
         }
-        lazyInitCaches();
+        return assetPath;
+    }
+
+    private String[] listAssets(String assetPath) throws IOException {
+        assetPath = stripSlashes(assetPath);
+        AssetIndex index = lazyInitIndex();
+        if (index != null) {
+            int entry = index.find(assetPath);
+            return entry < 0 ? new String[0] : index.listChildren(entry);
+        }
         String[] ret = listCache.get(assetPath);
         if (ret == null) {
-            if (listCacheFromFile) {
-                ret = new String[0];
-            } else {
-                ret = assetManager.list(assetPath);
-                listCache.put(assetPath, ret);
-            }
+            ret = assetManager.list(assetPath);
+            listCache.put(assetPath, ret);
         }
         return ret;
     }
@@ -98,13 +90,13 @@ public class AssetFilesystem extends Filesystem {
         if (assetPath.startsWith("/")) {
             assetPath = assetPath.substring(1);
         }
-        lazyInitCaches();
-        if (lengthCache != null) {
-            Long ret = lengthCache.get(assetPath);
-            if (ret == null) {
+        AssetIndex index = lazyInitIndex();
+        if (index != null) {
+            int entry = index.find(assetPath);
+            if (entry < 0 || index.isDirectory(entry)) {
                 throw new FileNotFoundException("Asset not found: " + assetPath);
             }
-            return ret;
+            return index.getSize(entry);
         }
         CordovaResourceApi.OpenForReadResult offr = null;
         try {
@@ -170,6 +162,11 @@ public class AssetFilesystem extends Filesystem {
     }
 
     private boolean isDirectory(String assetPath) {
+        AssetIndex index = lazyInitIndex();
+        if (index != null) {
+            int entry = index.find(stripSlashes(assetPath));
+            return entry >= 0 && index.isDirectory(entry);
+        }
         try {
             return listAssets(assetPath).length != 0;
         } catch (IOException e) {
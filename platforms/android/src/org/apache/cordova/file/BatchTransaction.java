@@ -0,0 +1,156 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Undo log for a transactional batch of file operations.
+ *
+ * Creations are recorded after the fact, and removals are staged by renaming the entry to a
+ * hidden sibling, so that both can be reverted if a later operation of the batch fails.
+ * Staged entries are only deleted for good when the batch commits. They are left out of
+ * directory listings, and any left behind by a batch that never finished, e.g. because the app
+ * was killed, are deleted the next time their directory is listed or staged into.
+ */
+class BatchTransaction {
+    private static final String STAGING_PREFIX = ".cdvbatch-";
+
+    // Batches that are still running, whose staged entries must not be swept
+    private static final Set<String> activeIds = Collections.synchronizedSet(new HashSet<String>());
+
+    private final String id = Long.toString(System.nanoTime());
+    private final ArrayList<Change> changes = new ArrayList<Change>();
+    private final HashSet<File> sweptDirectories = new HashSet<File>();
+
+    private static class Change {
+        final File original;
+        // null for entries that were created by the batch
+        final File staged;
+
+        Change(File original, File staged) {
+            this.original = original;
+            this.staged = staged;
+        }
+    }
+
+    public BatchTransaction() {
+        activeIds.add(id);
+    }
+
+    /**
+     * Returns true if an entry of this name is a removal staged by a batch.
+     */
+    public static boolean isStaged(String name) {
+        return name.startsWith(STAGING_PREFIX);
+    }
+
+    /**
+     * Deletes a staged entry of a directory if the batch that staged it is no longer running.
+     *
+     * @return true if the entry was deleted
+     */
+    public static boolean sweep(File staged) {
+        String name = staged.getName();
+        int end = name.lastIndexOf('-');
+        if (end <= STAGING_PREFIX.length() || activeIds.contains(name.substring(STAGING_PREFIX.length(), end))) {
+            return false;
+        }
+        discard(staged);
+        return true;
+    }
+
+    /**
+     * Records an entry that did not exist before the batch created it.
+     */
+    public void recordCreated(File file) {
+        changes.add(new Change(file, null));
+    }
+
+    /**
+     * Removes an entry in a way that can be undone until the batch commits.
+     */
+    public void stageRemoval(File file) throws NoModificationAllowedException {
+        File directory = file.getParentFile();
+        if (sweptDirectories.add(directory)) {
+            File[] children = directory.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (isStaged(child.getName())) {
+                        sweep(child);
+                    }
+                }
+            }
+        }
+        File staged = new File(file.getParentFile(), STAGING_PREFIX + id + "-" + changes.size());
+        if (!file.renameTo(staged)) {
+            throw new NoModificationAllowedException("Could not remove " + file.getName());
+        }
+        changes.add(new Change(file, staged));
+    }
+
+    public void commit() {
+        for (Change change : changes) {
+            if (change.staged != null) {
+                discard(change.staged);
+            }
+        }
+        changes.clear();
+        activeIds.remove(id);
+    }
+
+    /**
+     * Reverts all recorded changes, newest first.
+     */
+    public void rollback() {
+        for (int i = changes.size() - 1; i >= 0; --i) {
+            Change change = changes.get(i);
+            if (change.staged == null) {
+                discard(change.original);
+            } else {
+                change.staged.renameTo(change.original);
+            }
+        }
+        changes.clear();
+        activeIds.remove(id);
+    }
+
+    /*
+     * Deletes an entry for good, and takes its size off the storage usage of its filesystems.
+     */
+    private static void discard(File file) {
+        long size = StorageUsage.sizeOf(file);
+        deleteRecursively(file);
+        StorageUsage.adjust(file.getAbsolutePath(), -size);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -83,10 +83,15 @@ public class FileUtils extends CordovaPlugin {
 
     public static int UNKNOWN_ERR = 1000;
 
+    // Default time to wait for further changes before delivering watch events, in milliseconds
+    private static final long DEFAULT_WATCH_DEBOUNCE = 250;
+
     private boolean configured = false;
 
     private PendingRequests pendingRequests;
 
+    private FileWatcher fileWatcher;
+
 
 
     /*
@@ -105,20 +110,43 @@ public class FileUtils extends CordovaPlugin {
     }
 
     private ArrayList<Filesystem> filesystems;
+    // Lookup tables over the same filesystems: by name for cdvfile: URLs, and by root URI
+    // scheme for native URLs.
+    private HashMap<String, Filesystem> filesystemsByName;
+    private HashMap<String, ArrayList<Filesystem>> filesystemsByScheme;
 
     public void registerFilesystem(Filesystem fs) {
-    	if (fs != null && filesystemForName(fs.name)== null) {
+    	if (fs != null && fs.name != null && filesystemForName(fs.name)== null) {
     		this.filesystems.add(fs);
+    		this.filesystemsByName.put(fs.name, fs);
+    		String scheme = fs.getRootUri().getScheme();
+    		ArrayList<Filesystem> sameScheme = this.filesystemsByScheme.get(scheme);
+    		if (sameScheme == null) {
+    			sameScheme = new ArrayList<Filesystem>();
+    			this.filesystemsByScheme.put(scheme, sameScheme);
+    		}
+    		sameScheme.add(fs);
     	}
     }
 
     private Filesystem filesystemForName(String name) {
-    	for (Filesystem fs:filesystems) {
-    		if (fs != null && fs.name != null && fs.name.equals(name)) {
-    			return fs;
-    		}
-    	}
-    	return null;
+    	return name == null ? null : filesystemsByName.get(name);
+    }
+
+    /*
+     * Returns the usage tracker of a local filesystem. Only local filesystems other than the
+     * device root have quotas.
+     */
+    private StorageUsage usageForName(String name) throws FileNotFoundException, TypeMismatchException {
+        Filesystem fs = filesystemForName(name);
+        if (!(fs instanceof LocalFilesystem)) {
+            throw new FileNotFoundException("No local filesystem named " + name);
+        }
+        StorageUsage usage = ((LocalFilesystem) fs).getUsage();
+        if (!usage.isTracked()) {
+            throw new TypeMismatchException("Storage usage of " + name + " is not tracked");
+        }
+        return usage;
     }
 
     protected String[] getExtraFileSystemsPreference(Activity activity) {
@@ -174,7 +202,10 @@ public class FileUtils extends CordovaPlugin {
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
     	super.initialize(cordova, webView);
     	this.filesystems = new ArrayList<Filesystem>();
+    	this.filesystemsByName = new HashMap<String, Filesystem>();
+    	this.filesystemsByScheme = new HashMap<String, ArrayList<Filesystem>>();
         this.pendingRequests = new PendingRequests();
+        this.fileWatcher = new FileWatcher(webView.getContext().getContentResolver());
 
     	String tempRoot = null;
     	String persistentRoot = null;
@@ -234,6 +265,27 @@ public class FileUtils extends CordovaPlugin {
     	}
     }
 
+    @Override
+    public void onReset() {
+        if (fileWatcher != null) {
+            fileWatcher.unwatchAll();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        if (fileWatcher != null) {
+            fileWatcher.unwatchAll();
+        }
+        if (filesystems != null) {
+            for (Filesystem fs : filesystems) {
+                if (fs instanceof ContentFilesystem) {
+                    ((ContentFilesystem) fs).unregisterObservers();
+                }
+            }
+        }
+    }
+
     public static FileUtils getFilePlugin() {
 		return filePlugin;
 	}
@@ -424,6 +476,14 @@ public class FileUtils extends CordovaPlugin {
                 }
             }, rawArgs, callbackContext);
         }
+        else if (action.equals("getFileMetadataBatch")) {
+            threadhelper( new FileOp( ){
+                public void run(JSONArray args) throws JSONException, MalformedURLException {
+                    JSONArray entries = getFileMetadataBatch(args.getJSONArray(0));
+                    callbackContext.success(entries);
+                }
+            }, rawArgs, callbackContext);
+        }
         else if (action.equals("getParent")) {
             threadhelper( new FileOp( ){
                 public void run(JSONArray args) throws JSONException, IOException {
@@ -532,6 +592,55 @@ public class FileUtils extends CordovaPlugin {
                 }
             }, rawArgs, callbackContext);
         }
+        else if (action.equals("batch")) {
+            threadhelper( new FileOp( ){
+                public void run(JSONArray args) throws JSONException {
+                    JSONObject options = args.optJSONObject(1);
+                    boolean transactional = options != null && options.optBoolean("transactional", false);
+                    callbackContext.success(runBatch(args.getJSONArray(0), transactional));
+                }
+            }, rawArgs, callbackContext);
+        }
+        else if (action.equals("watch")) {
+            threadhelper( new FileOp( ){
+                public void run(JSONArray args) throws JSONException, FileNotFoundException, MalformedURLException, TypeMismatchException {
+                    String watchId = args.getString(0);
+                    String fname = args.getString(1);
+                    JSONObject options = args.optJSONObject(2);
+                    long debounce = options == null ? DEFAULT_WATCH_DEBOUNCE : options.optLong("debounce", DEFAULT_WATCH_DEBOUNCE);
+                    watch(watchId, fname, Math.max(debounce, 0), callbackContext);
+                }
+            }, rawArgs, callbackContext);
+        }
+        else if (action.equals("unwatch")) {
+            threadhelper( new FileOp( ){
+                public void run(JSONArray args) throws JSONException {
+                    boolean removed = fileWatcher.unwatch(args.getString(0));
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, removed));
+                }
+            }, rawArgs, callbackContext);
+        }
+        else if (action.equals("getUsage")) {
+            threadhelper( new FileOp( ){
+                public void run(JSONArray args) throws JSONException, FileNotFoundException, TypeMismatchException {
+                    StorageUsage usage = usageForName(args.getString(0));
+                    JSONObject ret = new JSONObject();
+                    ret.put("usedBytes", usage.getUsedBytes());
+                    ret.put("quotaBytes", usage.getQuotaBytes());
+                    ret.put("availableBytes", usage.getAvailableBytes());
+                    callbackContext.success(ret);
+                }
+            }, rawArgs, callbackContext);
+        }
+        else if (action.equals("setQuota")) {
+            threadhelper( new FileOp( ){
+                public void run(JSONArray args) throws JSONException, FileNotFoundException, TypeMismatchException {
+                    StorageUsage usage = usageForName(args.getString(0));
+                    usage.setQuotaBytes(args.isNull(1) ? -1 : args.getLong(1));
+                    callbackContext.success();
+                }
+            }, rawArgs, callbackContext);
+        }
         else if (action.equals("_getLocalFilesystemPath")) {
             // Internal method for testing: Get the on-disk location of a local filesystem url.
             // [Currently used for testing file-transfer]
@@ -590,10 +699,17 @@ public class FileUtils extends CordovaPlugin {
 
     public LocalFilesystemURL resolveNativeUri(Uri nativeUri) {
         LocalFilesystemURL localURL = null;
+        ArrayList<Filesystem> candidates = filesystemsByScheme.get(nativeUri.getScheme());
+        if (candidates == null) {
+            return null;
+        }
 
-        // Try all installed filesystems. Return the best matching URL
+        // Try all installed filesystems rooted above this URI. Return the best matching URL
         // (determined by the shortest resulting URL)
-        for (Filesystem fs : filesystems) {
+        for (Filesystem fs : candidates) {
+            if (!fs.mayContainNativeUri(nativeUri)) {
+                continue;
+            }
             LocalFilesystemURL url = fs.toLocalUri(nativeUri);
             if (url != null) {
                 // A shorter fullPath implies that the filesystem is a better
@@ -656,35 +772,186 @@ public class FileUtils extends CordovaPlugin {
                     JSONArray args = new JSONArray(rawArgs);
                     f.run(args);
                 } catch ( Exception e) {
-                    if( e instanceof EncodingException){
-                        callbackContext.error(FileUtils.ENCODING_ERR);
-                    } else if(e instanceof FileNotFoundException) {
-                        callbackContext.error(FileUtils.NOT_FOUND_ERR);
-                    } else if(e instanceof FileExistsException) {
-                        callbackContext.error(FileUtils.PATH_EXISTS_ERR);
-                    } else if(e instanceof NoModificationAllowedException ) {
-                        callbackContext.error(FileUtils.NO_MODIFICATION_ALLOWED_ERR);
-                    } else if(e instanceof InvalidModificationException ) {
-                        callbackContext.error(FileUtils.INVALID_MODIFICATION_ERR);
-                    } else if(e instanceof MalformedURLException ) {
-                        callbackContext.error(FileUtils.ENCODING_ERR);
-                    } else if(e instanceof IOException ) {
-                        callbackContext.error(FileUtils.INVALID_MODIFICATION_ERR);
-                    } else if(e instanceof EncodingException ) {
-                        callbackContext.error(FileUtils.ENCODING_ERR);
-                    } else if(e instanceof TypeMismatchException ) {
-                        callbackContext.error(FileUtils.TYPE_MISMATCH_ERR);
-                    } else if(e instanceof JSONException ) {
+                    if(e instanceof JSONException ) {
                         callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
                     } else {
-                        e.printStackTrace();
-                    	callbackContext.error(FileUtils.UNKNOWN_ERR);
+                        int errorCode = errorCodeForException(e);
+                        if (errorCode == FileUtils.UNKNOWN_ERR) {
+                            e.printStackTrace();
+                        }
+                        callbackContext.error(errorCode);
                     }
                 }
             }
         });
     }
 
+    /*
+     * Maps the exceptions thrown by file operations to FileError codes.
+     */
+    private static int errorCodeForException(Exception e) {
+        if( e instanceof EncodingException){
+            return FileUtils.ENCODING_ERR;
+        } else if(e instanceof FileNotFoundException) {
+            return FileUtils.NOT_FOUND_ERR;
+        } else if(e instanceof FileExistsException) {
+            return FileUtils.PATH_EXISTS_ERR;
+        } else if(e instanceof NoModificationAllowedException ) {
+            return FileUtils.NO_MODIFICATION_ALLOWED_ERR;
+        } else if(e instanceof InvalidModificationException ) {
+            return FileUtils.INVALID_MODIFICATION_ERR;
+        } else if(e instanceof MalformedURLException ) {
+            return FileUtils.ENCODING_ERR;
+        } else if(e instanceof QuotaExceededException ) {
+            return FileUtils.QUOTA_EXCEEDED_ERR;
+        } else if(e instanceof IOException ) {
+            return FileUtils.INVALID_MODIFICATION_ERR;
+        } else if(e instanceof TypeMismatchException ) {
+            return FileUtils.TYPE_MISMATCH_ERR;
+        } else if(e instanceof SecurityException ) {
+            return FileUtils.SECURITY_ERR;
+        } else if(e instanceof JSONException ) {
+            return FileUtils.SYNTAX_ERR;
+        }
+        return FileUtils.UNKNOWN_ERR;
+    }
+
+    /**
+     * Runs a list of file operations in order, on the calling thread, so that many operations
+     * cost a single bridge round trip. Each operation is an object of the form
+     * {"action": "getFile", "args": [...]}, taking the same arguments as the action of the same
+     * name.
+     *
+     * In a transactional batch, the batch stops at the first failing operation, and the files and
+     * directories created (getFile/getDirectory) or removed (remove/removeRecursively) by the
+     * earlier operations are restored. Other modifications, such as writes, are not undone.
+     *
+     * @return {"results": [...], "rolledBack": boolean}, with one {"result": ...} or
+     *         {"error": code} per operation. Operations skipped after a failure report ABORT_ERR.
+     */
+    private JSONObject runBatch(JSONArray ops, boolean transactional) throws JSONException {
+        BatchTransaction transaction = transactional ? new BatchTransaction() : null;
+        JSONArray results = new JSONArray();
+        boolean aborted = false;
+        for (int i = 0; i < ops.length(); ++i) {
+            JSONObject result = new JSONObject();
+            if (aborted) {
+                result.put("error", FileUtils.ABORT_ERR);
+            } else {
+                try {
+                    JSONObject op = ops.getJSONObject(i);
+                    JSONArray args = op.optJSONArray("args");
+                    Object value = runBatchOp(op.getString("action"), args == null ? new JSONArray() : args, transaction);
+                    result.put("result", value == null ? JSONObject.NULL : value);
+                } catch (Exception e) {
+                    result.put("error", errorCodeForException(e));
+                    aborted = transactional;
+                }
+            }
+            results.put(result);
+        }
+        if (transaction != null) {
+            if (aborted) {
+                transaction.rollback();
+            } else {
+                transaction.commit();
+            }
+        }
+        JSONObject ret = new JSONObject();
+        ret.put("results", results);
+        ret.put("rolledBack", aborted);
+        return ret;
+    }
+
+    private Object runBatchOp(String action, JSONArray args, BatchTransaction transaction) throws Exception {
+        if (action.equals("getFile") || action.equals("getDirectory")) {
+            boolean directory = action.equals("getDirectory");
+            String dirname = args.getString(0);
+            String path = args.getString(1);
+            JSONObject options = args.optJSONObject(2);
+            boolean create = options != null && options.optBoolean("create", false);
+            String nativeURL = resolveLocalFileSystemURI(dirname).getString("nativeURL");
+            if (needPermission(nativeURL, create ? WRITE : READ)) {
+                throw new SecurityException("Permission required for " + nativeURL);
+            }
+            File target = (transaction != null && create) ? localFileForPath(dirname, path) : null;
+            boolean existed = target != null && target.exists();
+            JSONObject entry = getFile(dirname, path, options, directory);
+            if (target != null && !existed) {
+                transaction.recordCreated(target);
+            }
+            return entry;
+        } else if (action.equals("getFileMetadata")) {
+            return getFileMetadata(args.getString(0));
+        } else if (action.equals("resolveLocalFileSystemURI")) {
+            return resolveLocalFileSystemURI(args.getString(0));
+        } else if (action.equals("getParent")) {
+            return getParent(args.getString(0));
+        } else if (action.equals("readEntries")) {
+            return readEntries(args.getString(0));
+        } else if (action.equals("remove") || action.equals("removeRecursively")) {
+            boolean recursive = action.equals("removeRecursively");
+            if (transaction != null) {
+                stageRemoval(args.getString(0), recursive, transaction);
+            } else if (!(recursive ? removeRecursively(args.getString(0)) : remove(args.getString(0)))) {
+                throw new NoModificationAllowedException("Could not remove " + args.getString(0));
+            }
+            return null;
+        } else if (action.equals("write")) {
+            String fname = args.getString(0);
+            String nativeURL = resolveLocalFileSystemURI(fname).getString("nativeURL");
+            if (needPermission(nativeURL, WRITE)) {
+                throw new SecurityException("Permission required for " + nativeURL);
+            }
+            return write(fname, args.getString(1), args.getInt(2), args.getBoolean(3));
+        } else if (action.equals("truncate")) {
+            return truncateFile(args.getString(0), args.getInt(1));
+        } else if (action.equals("copyTo") || action.equals("moveTo")) {
+            return transferTo(args.getString(0), args.getString(1), args.getString(2), action.equals("moveTo"));
+        }
+        throw new JSONException("Unsupported batch action: " + action);
+    }
+
+    /*
+     * Returns the on-disk location a getFile/getDirectory call would create, or null if the
+     * base URL is not on a local filesystem.
+     */
+    private File localFileForPath(String baseURLstr, String path) {
+        LocalFilesystemURL inputURL = LocalFilesystemURL.parse(baseURLstr);
+        Filesystem fs = this.filesystemForURL(inputURL);
+        if (!(fs instanceof LocalFilesystem)) {
+            return null;
+        }
+        String fullPath = Filesystem.normalizePath(path.startsWith("/") ? path : inputURL.path + "/" + path);
+        return new File(((LocalFilesystem) fs).filesystemPathForFullPath(fullPath));
+    }
+
+    private void stageRemoval(String baseURLstr, boolean recursive, BatchTransaction transaction) throws NoModificationAllowedException, InvalidModificationException, MalformedURLException {
+        LocalFilesystemURL inputURL = LocalFilesystemURL.parse(baseURLstr);
+        if (inputURL == null) {
+            throw new MalformedURLException("Unrecognized filesystem URL");
+        }
+        // You can't delete the root directory.
+        if ("".equals(inputURL.path) || "/".equals(inputURL.path)) {
+            throw new NoModificationAllowedException("You can't delete the root directory");
+        }
+        Filesystem fs = this.filesystemForURL(inputURL);
+        if (fs == null) {
+            throw new MalformedURLException("No installed handlers for this URL");
+        }
+        if (!(fs instanceof LocalFilesystem)) {
+            throw new NoModificationAllowedException("Only local files can be removed in a transaction");
+        }
+        File file = new File(fs.filesystemPathForURL(inputURL));
+        if (!file.exists()) {
+            throw new NoModificationAllowedException("Could not remove " + file.getName());
+        }
+        if (!recursive && file.isDirectory() && file.list().length > 0) {
+            throw new InvalidModificationException("You can't delete a directory that is not empty.");
+        }
+        transaction.stageRemoval(file);
+    }
+
     /**
      * Allows the user to look up the Entry for a file or directory referred to by a local URI.
      *
@@ -910,6 +1177,68 @@ public class FileUtils extends CordovaPlugin {
         }
     }
 
+    /**
+     * Starts delivering change events for a file or directory to the given callback, which is
+     * kept until the watch is removed with unwatch.
+     */
+    private void watch(String watchId, String baseURLstr, long debounceMillis, CallbackContext callbackContext) throws FileNotFoundException, MalformedURLException, TypeMismatchException {
+        try {
+        	LocalFilesystemURL inputURL = LocalFilesystemURL.parse(baseURLstr);
+        	Filesystem fs = this.filesystemForURL(inputURL);
+        	if (fs == null) {
+        		throw new MalformedURLException("No installed handlers for this URL");
+        	}
+        	fileWatcher.watch(watchId, fs, inputURL, debounceMillis, callbackContext);
+
+        } catch (IllegalArgumentException e) {
+        	throw new MalformedURLException("Unrecognized filesystem URL");
+        }
+    }
+
+    /**
+     * Returns the metadata of several entries in one call. content: URLs are handed to the
+     * ContentFilesystem together, so that rows of the same provider table cost a single query.
+     *
+     * @return an array parallel to baseURLs, holding null for entries that do not exist
+     */
+    private JSONArray getFileMetadataBatch(JSONArray baseURLs) throws JSONException, MalformedURLException {
+        JSONArray ret = new JSONArray();
+        ContentFilesystem contentFs = null;
+        ArrayList<LocalFilesystemURL> contentURLs = new ArrayList<LocalFilesystemURL>();
+        ArrayList<Integer> contentIndices = new ArrayList<Integer>();
+        for (int i = 0; i < baseURLs.length(); ++i) {
+            LocalFilesystemURL inputURL;
+            try {
+                inputURL = LocalFilesystemURL.parse(baseURLs.getString(i));
+            } catch (IllegalArgumentException e) {
+                throw new MalformedURLException("Unrecognized filesystem URL");
+            }
+            Filesystem fs = this.filesystemForURL(inputURL);
+            if (fs == null) {
+                throw new MalformedURLException("No installed handlers for this URL");
+            }
+            if (fs instanceof ContentFilesystem) {
+                contentFs = (ContentFilesystem) fs;
+                contentURLs.add(inputURL);
+                contentIndices.add(i);
+                ret.put(JSONObject.NULL);
+            } else {
+                try {
+                    ret.put(fs.getFileMetadataForLocalURL(inputURL));
+                } catch (FileNotFoundException e) {
+                    ret.put(JSONObject.NULL);
+                }
+            }
+        }
+        if (contentFs != null) {
+            JSONArray contentResults = contentFs.getFileMetadataForLocalURLs(contentURLs);
+            for (int i = 0; i < contentResults.length(); ++i) {
+                ret.put(contentIndices.get(i), contentResults.get(i));
+            }
+        }
+        return ret;
+    }
+
     /**
      * Requests a filesystem in which to store application data.
      *
@@ -0,0 +1,293 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.file;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Delivers change notifications for watched entries over a keepCallback channel.
+ *
+ * Local entries are watched with a FileObserver (a directory reports changes to its direct
+ * children), content: entries with a ContentObserver. Events are coalesced per path and flushed
+ * once no new event arrived for the debounce interval, or at the latest after four intervals.
+ */
+class FileWatcher {
+    private static final String LOG_TAG = "FileWatcher";
+
+    static final String EVENT_CREATE = "create";
+    static final String EVENT_MODIFY = "modify";
+    static final String EVENT_DELETE = "delete";
+
+    private static final int FILE_OBSERVER_MASK = FileObserver.CREATE | FileObserver.MOVED_TO
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.CLOSE_WRITE
+            | FileObserver.ATTRIB | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private final ContentResolver contentResolver;
+    private final HashMap<String, Watch> watches = new HashMap<String, Watch>();
+    private HandlerThread thread;
+    private Handler handler;
+
+    FileWatcher(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * Starts watching an entry. Any existing watch with the same id is replaced.
+     */
+    public synchronized void watch(String watchId, Filesystem fs, LocalFilesystemURL inputURL, long debounceMillis,
+                                   CallbackContext callbackContext) throws FileNotFoundException, TypeMismatchException {
+        unwatch(watchId);
+        if (handler == null) {
+            thread = new HandlerThread(LOG_TAG);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+
+        Watch watch;
+        if (fs instanceof LocalFilesystem) {
+            File file = new File(fs.filesystemPathForURL(inputURL));
+            if (!file.exists()) {
+                throw new FileNotFoundException("File at " + inputURL.uri + " does not exist.");
+            }
+            watch = new LocalWatch(watchId, inputURL, file, debounceMillis, callbackContext);
+        } else if (fs instanceof ContentFilesystem) {
+            watch = new ContentWatch(watchId, fs, inputURL, debounceMillis, callbackContext);
+        } else {
+            throw new TypeMismatchException("Filesystem " + fs.name + " can't be watched");
+        }
+        watches.put(watchId, watch);
+        watch.start();
+    }
+
+    /**
+     * Stops a watch, and sends its callback a last message with "stopped": true that releases it.
+     */
+    public synchronized boolean unwatch(String watchId) {
+        Watch watch = watches.remove(watchId);
+        if (watch == null) {
+            return false;
+        }
+        watch.stop();
+        JSONObject message = new JSONObject();
+        try {
+            message.put("watchId", watchId);
+            message.put("events", new JSONArray());
+            message.put("stopped", true);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        watch.callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, message));
+        return true;
+    }
+
+    /**
+     * Stops all watches without notifying their callbacks, e.g. when the page is reloaded.
+     */
+    public synchronized void unwatchAll() {
+        for (Watch watch : watches.values()) {
+            watch.stop();
+        }
+        watches.clear();
+        if (thread != null) {
+            thread.quit();
+            thread = null;
+            handler = null;
+        }
+    }
+
+    private abstract class Watch implements Runnable {
+        final String watchId;
+        final LocalFilesystemURL inputURL;
+        final long debounceMillis;
+        final CallbackContext callbackContext;
+        // Pending events by full path, in the order their paths first changed.
+        private final LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>();
+        private long firstPendingTime;
+        private boolean stopped;
+
+        Watch(String watchId, LocalFilesystemURL inputURL, long debounceMillis, CallbackContext callbackContext) {
+            this.watchId = watchId;
+            this.inputURL = inputURL;
+            this.debounceMillis = debounceMillis;
+            this.callbackContext = callbackContext;
+        }
+
+        abstract void start();
+
+        abstract void stopObserving();
+
+        void stop() {
+            synchronized (this) {
+                stopped = true;
+                pending.clear();
+            }
+            stopObserving();
+            handler.removeCallbacks(this);
+        }
+
+        synchronized void onChange(String fullPath, String event) {
+            if (stopped) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (pending.isEmpty()) {
+                firstPendingTime = now;
+            }
+            String merged = merge(pending.get(fullPath), event);
+            if (merged == null) {
+                pending.remove(fullPath);
+            } else {
+                pending.put(fullPath, merged);
+            }
+            handler.removeCallbacks(this);
+            if (!pending.isEmpty()) {
+                handler.postAtTime(this, Math.min(now + debounceMillis, firstPendingTime + 4 * debounceMillis));
+            }
+        }
+
+        // Flushes the coalesced events.
+        public void run() {
+            JSONArray events = new JSONArray();
+            synchronized (this) {
+                if (stopped || pending.isEmpty()) {
+                    return;
+                }
+                try {
+                    for (Map.Entry<String, String> change : pending.entrySet()) {
+                        JSONObject event = new JSONObject();
+                        event.put("fullPath", change.getKey());
+                        event.put("type", change.getValue());
+                        events.put(event);
+                    }
+                } catch (JSONException e) {
+                    throw new RuntimeException(e);
+                }
+                pending.clear();
+            }
+            JSONObject message = new JSONObject();
+            try {
+                message.put("watchId", watchId);
+                message.put("events", events);
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+            PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        }
+    }
+
+    /*
+     * Combines an already pending event with a new one for the same path. Returns null if the two
+     * cancel out (a file that was created and deleted again before the flush).
+     */
+    private static String merge(String previous, String event) {
+        if (previous == null) {
+            return event;
+        }
+        if (EVENT_CREATE.equals(previous)) {
+            return EVENT_DELETE.equals(event) ? null : EVENT_CREATE;
+        }
+        if (EVENT_DELETE.equals(previous)) {
+            return EVENT_CREATE.equals(event) ? EVENT_MODIFY : EVENT_DELETE;
+        }
+        return event;
+    }
+
+    private class LocalWatch extends Watch {
+        private final FileObserver observer;
+
+        LocalWatch(String watchId, final LocalFilesystemURL inputURL, File file, long debounceMillis, CallbackContext callbackContext) {
+            super(watchId, inputURL, debounceMillis, callbackContext);
+            final String basePath = inputURL.path.endsWith("/") ? inputURL.path : inputURL.path + "/";
+            observer = new FileObserver(file.getAbsolutePath(), FILE_OBSERVER_MASK) {
+                @Override
+                public void onEvent(int event, String path) {
+                    event &= FileObserver.ALL_EVENTS;
+                    String fullPath = path == null ? inputURL.path : basePath + path;
+                    if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+                        onChange(fullPath, EVENT_CREATE);
+                    } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+                        onChange(fullPath, EVENT_DELETE);
+                    } else if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                        onChange(inputURL.path, EVENT_DELETE);
+                    } else if (event != 0) {
+                        onChange(fullPath, EVENT_MODIFY);
+                    }
+                }
+            };
+        }
+
+        void start() {
+            observer.startWatching();
+        }
+
+        void stopObserving() {
+            observer.stopWatching();
+        }
+    }
+
+    private class ContentWatch extends Watch {
+        private final ContentObserver observer;
+        private final Uri nativeUri;
+
+        ContentWatch(String watchId, final Filesystem fs, final LocalFilesystemURL inputURL, long debounceMillis, CallbackContext callbackContext) {
+            super(watchId, inputURL, debounceMillis, callbackContext);
+            nativeUri = fs.toNativeUri(inputURL);
+            observer = new ContentObserver(handler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onChange(selfChange, null);
+                }
+
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    LocalFilesystemURL changedURL = uri == null ? null : fs.toLocalUri(uri);
+                    ContentWatch.this.onChange(changedURL == null ? inputURL.path : changedURL.path, EVENT_MODIFY);
+                }
+            };
+        }
+
+        void start() {
+            contentResolver.registerContentObserver(nativeUri, true, observer);
+        }
+
+        void stopObserving() {
+            contentResolver.unregisterContentObserver(observer);
+        }
+    }
+}
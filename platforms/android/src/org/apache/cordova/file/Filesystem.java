@@ -26,8 +26,6 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
 
 import org.apache.cordova.CordovaResourceApi;
 import org.json.JSONArray;
@@ -156,33 +154,66 @@ public abstract class Filesystem {
 
     /**
      * Removes multiple repeated //s, and collapses processes ../s.
+     * Works in a single pass over the characters, using the output buffer as the component stack.
      */
     protected static String normalizePath(String rawPath) {
         // If this is an absolute path, trim the leading "/" and replace it later
         boolean isAbsolutePath = rawPath.startsWith("/");
-        if (isAbsolutePath) {
-            rawPath = rawPath.replaceFirst("/+", "");
-        }
-        ArrayList<String> components = new ArrayList<String>(Arrays.asList(rawPath.split("/+")));
-        for (int index = 0; index < components.size(); ++index) {
-            if (components.get(index).equals("..")) {
-                components.remove(index);
-                if (index > 0) {
-                    components.remove(index-1);
-                    --index;
+        int length = rawPath.length();
+        char[] normalizedPath = new char[length + 1];
+        int normalizedLength = 0;
+        int pos = 0;
+        while (pos < length) {
+            while (pos < length && rawPath.charAt(pos) == '/') {
+                ++pos;
+            }
+            int start = pos;
+            while (pos < length && rawPath.charAt(pos) != '/') {
+                ++pos;
+            }
+            int componentLength = pos - start;
+            if (componentLength == 0) {
+                break;
+            }
+            if (componentLength == 2 && rawPath.charAt(start) == '.' && rawPath.charAt(start + 1) == '.') {
+                // Pop the previous component, if any. ".." never climbs above the start of the path.
+                while (normalizedLength > 0 && normalizedPath[--normalizedLength] != '/') {
                 }
+            } else {
+                normalizedPath[normalizedLength++] = '/';
+                rawPath.getChars(start, pos, normalizedPath, normalizedLength);
+                normalizedLength += componentLength;
             }
         }
-        StringBuilder normalizedPath = new StringBuilder();
-        for(String component: components) {
-            normalizedPath.append("/");
-            normalizedPath.append(component);
-        }
         if (isAbsolutePath) {
-            return normalizedPath.toString();
+            return normalizedLength == 0 ? "/" : new String(normalizedPath, 0, normalizedLength);
         } else {
-            return normalizedPath.toString().substring(1);
+            return normalizedLength == 0 ? "" : new String(normalizedPath, 1, normalizedLength - 1);
+        }
+    }
+
+    /**
+     * Cheap check of whether a native URI could belong to this filesystem, used to avoid
+     * calling toLocalUri() on filesystems that are rooted somewhere else entirely.
+     * May return true for URIs that toLocalUri() then rejects, but never the other way round.
+     */
+    public boolean mayContainNativeUri(Uri nativeUri) {
+        if (!rootUri.getScheme().equals(nativeUri.getScheme())) {
+            return false;
+        }
+        String path = nativeUri.getPath();
+        if (path == null || path.contains("//")) {
+            // toLocalUri() collapses repeated slashes, so leave those to it.
+            return true;
+        }
+        String rootPath = rootUri.getPath();
+        if (rootPath == null) {
+            return true;
+        }
+        if (rootPath.endsWith("/")) {
+            rootPath = rootPath.substring(0, rootPath.length() - 1);
         }
+        return path.startsWith(rootPath);
     }
 
     /**
@@ -19,11 +19,16 @@
 package org.apache.cordova.file;
 
 import android.net.Uri;
+import android.util.LruCache;
 
 public class LocalFilesystemURL {
 	
 	public static final String FILESYSTEM_PROTOCOL = "cdvfile";
 
+    // Instances are immutable, so the same parsed URL can be handed out to every caller.
+    // JS tends to use the same handful of directory URLs over and over again.
+    private static final LruCache<String, LocalFilesystemURL> parseCache = new LruCache<String, LocalFilesystemURL>(256);
+
     public final Uri uri;
     public final String fsName;
     public final String path;
@@ -37,6 +42,32 @@ public class LocalFilesystemURL {
 	}
 
     public static LocalFilesystemURL parse(Uri uri) {
+        if (!FILESYSTEM_PROTOCOL.equals(uri.getScheme())) {
+            return null;
+        }
+        String key = uri.toString();
+        LocalFilesystemURL ret = parseCache.get(key);
+        if (ret == null) {
+            ret = parseUncached(uri);
+            if (ret != null) {
+                parseCache.put(key, ret);
+            }
+        }
+        return ret;
+    }
+
+    public static LocalFilesystemURL parse(String uri) {
+        LocalFilesystemURL ret = parseCache.get(uri);
+        if (ret == null) {
+            ret = parseUncached(Uri.parse(uri));
+            if (ret != null) {
+                parseCache.put(uri, ret);
+            }
+        }
+        return ret;
+    }
+
+    private static LocalFilesystemURL parseUncached(Uri uri) {
         if (!FILESYSTEM_PROTOCOL.equals(uri.getScheme())) {
             return null;
         }
@@ -54,10 +85,6 @@ public class LocalFilesystemURL {
         return new LocalFilesystemURL(uri, fsName, path, isDirectory);
     }
 
-    public static LocalFilesystemURL parse(String uri) {
-        return parse(Uri.parse(uri));
-    }
-
     public String toString() {
         return uri.toString();
     }
@@ -29,6 +29,7 @@ public class FileProgressResult {
     private boolean lengthComputable = false; // declares whether total is known
     private long loaded = 0;                  // bytes sent so far
     private long total = 0;                   // bytes total, if known
+    private JSONObject json;                  // reused by toJSONObject()
 
     public boolean getLengthComputable() {
         return lengthComputable;
@@ -54,10 +55,17 @@ public class FileProgressResult {
         this.total = bytes;
     }
 
+    /**
+     * Returns the progress as JSON. The same object is updated and returned on every call, so
+     * callers must serialize it before the progress changes again.
+     */
     public JSONObject toJSONObject() throws JSONException {
-        return new JSONObject(
-                "{loaded:" + loaded +
-                ",total:" + total +
-                ",lengthComputable:" + (lengthComputable ? "true" : "false") + "}");
+        if (json == null) {
+            json = new JSONObject();
+        }
+        json.put("loaded", loaded);
+        json.put("total", total);
+        json.put("lengthComputable", lengthComputable);
+        return json;
     }
 }
@@ -0,0 +1,278 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.filetransfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * The on-disk state of a resumable download: the bytes received so far, in "<target>.partial",
+ * and the validators of the response they came from, in "<target>.partial.json".
+ *
+ * A download only resumes if the source URL is unchanged and the server sent a strong ETag or
+ * a Last-Modified date, which are passed back as If-Range. If the remote file changed since,
+ * the server answers the range request with the whole file and the partial data is discarded.
+ * The target file is only replaced once all bytes were received.
+ */
+class PartialDownload {
+    private static final String LOG_TAG = "FileTransfer";
+
+    private final String source;
+    private final File target;
+    private final File dataFile;
+    private final File stateFile;
+
+    private String etag;
+    private String lastModified;
+    // -1 while unknown
+    private long totalLength = -1;
+    // Number of bytes already in dataFile that the current response continues from
+    private long offset;
+
+    PartialDownload(String source, File target) {
+        this.source = source;
+        this.target = target;
+        this.dataFile = new File(target.getPath() + ".partial");
+        this.stateFile = new File(target.getPath() + ".partial.json");
+        loadState();
+    }
+
+    private void loadState() {
+        if (!dataFile.exists() || !stateFile.exists()) {
+            return;
+        }
+        try {
+            JSONObject state = new JSONObject(readFully(stateFile));
+            if (!source.equals(state.optString("source"))) {
+                return;
+            }
+            etag = state.isNull("etag") ? null : state.getString("etag");
+            lastModified = state.isNull("lastModified") ? null : state.getString("lastModified");
+            totalLength = state.optLong("totalLength", -1);
+            if (getValidator() != null) {
+                offset = dataFile.length();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read the state of partial download " + dataFile, e);
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Could not read the state of partial download " + dataFile, e);
+        }
+    }
+
+    /*
+     * If-Range only accepts strong validators, so weak ETags fall back to the date.
+     */
+    private String getValidator() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Asks for the remaining bytes only, if there is anything to resume. Content encodings are
+     * disabled because byte ranges refer to the encoded body.
+     */
+    void prepareRequest(HttpURLConnection connection) {
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        if (offset > 0) {
+            Log.d(LOG_TAG, "Resuming download of " + source + " at byte " + offset);
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            connection.setRequestProperty("If-Range", getValidator());
+        }
+    }
+
+    /**
+     * Inspects the response to a request prepared by prepareRequest and records its validators.
+     *
+     * @return false if the response has no body to read because the partial data is already
+     *         complete
+     * @throws IOException if the server rejected the range; the partial data is discarded so the
+     *         next attempt starts over
+     */
+    boolean handleResponse(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        if (status == 416) {
+            long length = parseCompleteLength(connection.getHeaderField("Content-Range"));
+            if (offset > 0 && length == offset) {
+                totalLength = length;
+                return false;
+            }
+            discard();
+            throw new IOException("Requested range not satisfiable");
+        }
+
+        if (status < 200 || status >= 300) {
+            // Left for the caller to report.
+            return true;
+        }
+
+        long contentLength = parseLong(connection.getHeaderField("Content-Length"));
+        if (status == HttpURLConnection.HTTP_PARTIAL) {
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (parseFirstBytePos(contentRange) != offset) {
+                discard();
+                throw new IOException("Unexpected Content-Range: " + contentRange);
+            }
+            long length = parseCompleteLength(contentRange);
+            totalLength = length >= 0 ? length : (contentLength >= 0 ? offset + contentLength : -1);
+        } else {
+            // The server sent the whole file, either because it changed or because ranges are unsupported.
+            offset = 0;
+            totalLength = contentLength;
+        }
+
+        etag = connection.getHeaderField("ETag");
+        lastModified = connection.getHeaderField("Last-Modified");
+        saveState();
+        return true;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    long getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * The file holding the bytes received so far.
+     */
+    File getDataFile() {
+        return dataFile;
+    }
+
+    /**
+     * Opens the partial file for the body of the current response.
+     */
+    OutputStream openOutputStream() throws IOException {
+        File parent = dataFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        return new FileOutputStream(dataFile, offset > 0);
+    }
+
+    /**
+     * Checks that all bytes were received and moves them to the target file.
+     *
+     * @throws IOException if the download is incomplete; the partial data is kept for a retry
+     */
+    void complete() throws IOException {
+        long length = dataFile.length();
+        if (totalLength >= 0 && length != totalLength) {
+            throw new IOException("Incomplete download: received " + length + " of " + totalLength + " bytes");
+        }
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Could not replace " + target);
+        }
+        if (!dataFile.renameTo(target)) {
+            throw new IOException("Could not move the download to " + target);
+        }
+        stateFile.delete();
+    }
+
+    /**
+     * Drops the partial data, e.g. when the download was aborted.
+     */
+    void discard() {
+        dataFile.delete();
+        stateFile.delete();
+        offset = 0;
+        totalLength = -1;
+    }
+
+    private void saveState() throws IOException {
+        JSONObject state = new JSONObject();
+        try {
+            state.put("source", source);
+            state.put("etag", etag == null ? JSONObject.NULL : etag);
+            state.put("lastModified", lastModified == null ? JSONObject.NULL : lastModified);
+            state.put("totalLength", totalLength);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        OutputStream os = new FileOutputStream(stateFile);
+        try {
+            os.write(state.toString().getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    private static String readFully(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) > 0) {
+                os.write(buffer, 0, bytesRead);
+            }
+            return os.toString("UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // "bytes 100-199/1000" -> 100
+    static long parseFirstBytePos(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int start = contentRange.indexOf(' ');
+        int dash = contentRange.indexOf('-');
+        if (start < 0 || dash < start) {
+            return -1;
+        }
+        return parseLong(contentRange.substring(start + 1, dash));
+    }
+
+    // "bytes 100-199/1000" or "bytes */1000" -> 1000; "bytes 100-199/*" -> -1
+    static long parseCompleteLength(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        return slash < 0 ? -1 : parseLong(contentRange.substring(slash + 1));
+    }
+}
@@ -0,0 +1,289 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.filetransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Downloads a file as several byte ranges fetched in parallel, which makes better use of
+ * high-latency links than a single stream.
+ *
+ * A one-byte range request first checks that the server supports ranges and tells the total
+ * length. Each segment then writes its range at its offset of a preallocated
+ * "<target>.segments" file, which replaces the target once all segments completed. Segments of
+ * all downloads share a small pool, so a handful of segmented downloads can't open an unbounded
+ * number of connections.
+ */
+class SegmentedDownload {
+    private static final String LOG_TAG = "FileTransfer";
+
+    static final int MAX_SEGMENTS = 8;
+    // Files are not split into segments smaller than this.
+    private static final long MIN_SEGMENT_LENGTH = 512 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadPoolExecutor segmentPool;
+    static {
+        segmentPool = new ThreadPoolExecutor(MAX_SEGMENTS, MAX_SEGMENTS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        segmentPool.allowCoreThreadTimeOut(true);
+    }
+
+    interface ConnectionFactory {
+        /**
+         * Returns a new, unconnected GET request for the source, with the request's cookies,
+         * headers and TLS settings applied.
+         */
+        HttpURLConnection createConnection() throws IOException;
+    }
+
+    private final ConnectionFactory connectionFactory;
+    private final File target;
+    private final File dataFile;
+    private final int requestedSegments;
+    private final AtomicLong loaded = new AtomicLong();
+    private final ArrayList<HttpURLConnection> connections = new ArrayList<HttpURLConnection>();
+    private volatile boolean cancelled;
+
+    private long totalLength = -1;
+    private String validator;
+
+    SegmentedDownload(ConnectionFactory connectionFactory, File target, int segments) {
+        this.connectionFactory = connectionFactory;
+        this.target = target;
+        this.dataFile = new File(target.getPath() + ".segments");
+        this.requestedSegments = Math.min(segments, MAX_SEGMENTS);
+    }
+
+    /**
+     * Checks whether the source can be fetched in segments.
+     *
+     * @return false if the server doesn't support ranges, or the file is too small to be worth
+     *         splitting; the caller should fall back to a normal download
+     */
+    boolean probe() throws IOException {
+        HttpURLConnection connection = connectionFactory.createConnection();
+        if (!register(connection)) {
+            return false;
+        }
+        try {
+            connection.setRequestProperty("Range", "bytes=0-0");
+            connection.connect();
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                return false;
+            }
+            String encoding = connection.getContentEncoding();
+            if (encoding != null && !encoding.equalsIgnoreCase("identity")) {
+                return false;
+            }
+            totalLength = PartialDownload.parseCompleteLength(connection.getHeaderField("Content-Range"));
+            String etag = connection.getHeaderField("ETag");
+            validator = etag != null && !etag.startsWith("W/") ? etag : connection.getHeaderField("Last-Modified");
+            return getSegmentCount() > 1;
+        } finally {
+            unregister(connection);
+            connection.disconnect();
+        }
+    }
+
+    long getTotalLength() {
+        return totalLength;
+    }
+
+    private int getSegmentCount() {
+        if (totalLength < 0) {
+            return 0;
+        }
+        return (int) Math.min(requestedSegments, totalLength / MIN_SEGMENT_LENGTH);
+    }
+
+    /**
+     * Fetches all segments and moves the result to the target. Must only be called after a
+     * successful probe(). The listener is called from the segment threads with the number of
+     * bytes received by all segments.
+     */
+    void download(ProgressListener listener) throws IOException {
+        int segmentCount = getSegmentCount();
+        long segmentLength = (totalLength + segmentCount - 1) / segmentCount;
+        Log.d(LOG_TAG, "Downloading " + totalLength + " bytes in " + segmentCount + " segments");
+
+        boolean success = false;
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+        try {
+            raf.setLength(totalLength);
+            FileChannel channel = raf.getChannel();
+
+            ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>(segmentCount);
+            for (long start = 0; start < totalLength; start += segmentLength) {
+                long end = Math.min(start + segmentLength, totalLength) - 1;
+                futures.add(segmentPool.submit(new Segment(start, end, channel, listener)));
+            }
+
+            IOException failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        Throwable cause = e.getCause();
+                        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                        // Stop the other segments instead of waiting for them to finish.
+                        cancel();
+                    }
+                } catch (InterruptedException e) {
+                    cancel();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (cancelled) {
+                throw new IOException("Download aborted");
+            }
+            success = true;
+        } finally {
+            raf.close();
+            if (!success) {
+                dataFile.delete();
+            }
+        }
+
+        if (target.exists() && !target.delete()) {
+            dataFile.delete();
+            throw new IOException("Could not replace " + target);
+        }
+        if (!dataFile.renameTo(target)) {
+            dataFile.delete();
+            throw new IOException("Could not move the download to " + target);
+        }
+    }
+
+    /**
+     * Disconnects all segments. The pending download() call then fails.
+     */
+    void cancel() {
+        ArrayList<HttpURLConnection> toDisconnect;
+        synchronized (connections) {
+            cancelled = true;
+            toDisconnect = new ArrayList<HttpURLConnection>(connections);
+            connections.clear();
+        }
+        for (HttpURLConnection connection : toDisconnect) {
+            try {
+                connection.disconnect();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "CB-8431 Catch workaround for fatal exception", e);
+            }
+        }
+    }
+
+    private boolean register(HttpURLConnection connection) {
+        synchronized (connections) {
+            if (cancelled) {
+                return false;
+            }
+            connections.add(connection);
+            return true;
+        }
+    }
+
+    private void unregister(HttpURLConnection connection) {
+        synchronized (connections) {
+            connections.remove(connection);
+        }
+    }
+
+    private class Segment implements Callable<Void> {
+        private final long start;
+        private final long end;
+        private final FileChannel channel;
+        private final ProgressListener listener;
+
+        Segment(long start, long end, FileChannel channel, ProgressListener listener) {
+            this.start = start;
+            this.end = end;
+            this.channel = channel;
+            this.listener = listener;
+        }
+
+        public Void call() throws IOException {
+            HttpURLConnection connection = connectionFactory.createConnection();
+            if (!register(connection)) {
+                throw new IOException("Download aborted");
+            }
+            InputStream inputStream = null;
+            try {
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+                if (validator != null) {
+                    connection.setRequestProperty("If-Range", validator);
+                }
+                connection.connect();
+                String contentRange = connection.getHeaderField("Content-Range");
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+                        || PartialDownload.parseFirstBytePos(contentRange) != start) {
+                    // Most likely the file changed on the server since the probe.
+                    throw new IOException("Server did not return the requested range " + start + "-" + end);
+                }
+
+                inputStream = connection.getInputStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long position = start;
+                int bytesRead;
+                while (position <= end && (bytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, end + 1 - position))) > 0) {
+                    ByteBuffer src = ByteBuffer.wrap(buffer, 0, bytesRead);
+                    while (src.hasRemaining()) {
+                        position += channel.write(src, position);
+                    }
+                    listener.onProgress(loaded.addAndGet(bytesRead));
+                }
+                if (position != end + 1) {
+                    throw new IOException("Segment " + start + "-" + end + " ended after " + (position - start) + " bytes");
+                }
+                return null;
+            } finally {
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException e) {
+                    }
+                }
+                unregister(connection);
+                connection.disconnect();
+            }
+        }
+    }
+}
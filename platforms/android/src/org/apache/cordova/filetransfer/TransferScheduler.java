@@ -0,0 +1,275 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.filetransfer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Decides when queued transfers run.
+ *
+ * Transfers wait in a queue ordered by priority (higher first) and then by submission order,
+ * and are started while fewer than maxConcurrent transfers are running in total and fewer than
+ * maxPerHost against their host. A transfer can ask to be retried after a failed attempt, in
+ * which case it goes back to the queue once its exponential backoff elapsed. Paused transfers
+ * stay in the queue without being started until they are resumed. The queue lives in memory
+ * for the lifetime of the process.
+ */
+class TransferScheduler {
+    private static final String LOG_TAG = "FileTransfer";
+
+    static final int DEFAULT_MAX_CONCURRENT = 4;
+    static final int DEFAULT_MAX_PER_HOST = 2;
+    private static final long BASE_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    static final class Job {
+        final String id;
+        // null for transfers that don't use the network
+        final String host;
+        final int priority;
+        final int maxRetries;
+        final Runnable work;
+        private final long sequence;
+        private int attempt;
+        private boolean running;
+        private boolean paused;
+        private boolean retryRequested;
+        private boolean requeueRequested;
+        private boolean cancelled;
+
+        private Job(String id, String host, int priority, int maxRetries, Runnable work, long sequence) {
+            this.id = id;
+            this.host = host;
+            this.priority = priority;
+            this.maxRetries = maxRetries;
+            this.work = work;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Job> queue = new ArrayList<Job>();
+    private final HashMap<String, Job> jobs = new HashMap<String, Job>();
+    private final HashMap<String, Integer> runningPerHost = new HashMap<String, Integer>();
+    private ExecutorService executor;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int maxPerHost = DEFAULT_MAX_PER_HOST;
+    private int running;
+    private long nextSequence;
+
+    synchronized void configure(ExecutorService executor, int maxConcurrent, int maxPerHost) {
+        this.executor = executor;
+        this.maxConcurrent = Math.max(maxConcurrent, 1);
+        this.maxPerHost = Math.max(maxPerHost, 1);
+        dispatch();
+    }
+
+    /**
+     * Queues a transfer. A transfer with the same id that is still queued is replaced.
+     */
+    synchronized void submit(String id, String host, int priority, int maxRetries, Runnable work) {
+        Job previous = jobs.get(id);
+        if (previous != null && !previous.running) {
+            queue.remove(previous);
+        }
+        Job job = new Job(id, host, priority, Math.max(maxRetries, 0), work, nextSequence++);
+        jobs.put(id, job);
+        enqueue(job);
+        dispatch();
+    }
+
+    /**
+     * Called by a running transfer that failed and wants another attempt. Returns false if the
+     * transfer used up its retries, in which case it should report its failure.
+     */
+    synchronized boolean requestRetry(String id) {
+        Job job = jobs.get(id);
+        if (job == null || job.cancelled || job.attempt >= job.maxRetries) {
+            return false;
+        }
+        job.retryRequested = true;
+        return true;
+    }
+
+    /**
+     * Called by a running transfer that was stopped by pause(), to be queued again right away.
+     */
+    synchronized void requeue(String id) {
+        Job job = jobs.get(id);
+        if (job != null) {
+            job.requeueRequested = true;
+        }
+    }
+
+    /**
+     * Holds a transfer back. Returns true if the transfer is queued; a running transfer must be
+     * stopped by the caller, and call requeue() before it returns.
+     */
+    synchronized boolean pause(String id) {
+        Job job = jobs.get(id);
+        if (job == null) {
+            return false;
+        }
+        job.paused = true;
+        return !job.running;
+    }
+
+    synchronized boolean resume(String id) {
+        Job job = jobs.get(id);
+        if (job == null || !job.paused) {
+            return false;
+        }
+        job.paused = false;
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Drops a transfer. A running transfer keeps its slot until it returns.
+     */
+    synchronized void cancel(String id) {
+        Job job = jobs.get(id);
+        if (job == null) {
+            return;
+        }
+        job.cancelled = true;
+        if (!job.running) {
+            queue.remove(job);
+            forget(job);
+        }
+    }
+
+    private void enqueue(Job job) {
+        int i = 0;
+        while (i < queue.size() && comesBefore(queue.get(i), job)) {
+            ++i;
+        }
+        queue.add(i, job);
+    }
+
+    private static boolean comesBefore(Job a, Job b) {
+        return a.priority != b.priority ? a.priority > b.priority : a.sequence < b.sequence;
+    }
+
+    private void dispatch() {
+        if (executor == null) {
+            return;
+        }
+        for (Iterator<Job> iter = queue.iterator(); iter.hasNext() && running < maxConcurrent; ) {
+            Job job = iter.next();
+            if (job.paused || (job.host != null && getRunning(job.host) >= maxPerHost)) {
+                continue;
+            }
+            iter.remove();
+            start(job);
+        }
+    }
+
+    private void start(final Job job) {
+        job.running = true;
+        running++;
+        if (job.host != null) {
+            runningPerHost.put(job.host, getRunning(job.host) + 1);
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    job.work.run();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Transfer " + job.id + " failed", e);
+                } finally {
+                    finished(job);
+                }
+            }
+        });
+    }
+
+    private synchronized void finished(final Job job) {
+        job.running = false;
+        running--;
+        if (job.host != null) {
+            runningPerHost.put(job.host, getRunning(job.host) - 1);
+        }
+
+        if (job.cancelled) {
+            forget(job);
+        } else if (job.requeueRequested) {
+            job.requeueRequested = false;
+            enqueue(job);
+        } else if (job.retryRequested) {
+            job.retryRequested = false;
+            long delay = Math.min(BASE_RETRY_DELAY << Math.min(job.attempt, 16), MAX_RETRY_DELAY);
+            job.attempt++;
+            Log.d(LOG_TAG, "Retrying transfer " + job.id + " in " + delay + "ms");
+            handler.postDelayed(new Runnable() {
+                public void run() {
+                    synchronized (TransferScheduler.this) {
+                        if (!job.cancelled) {
+                            enqueue(job);
+                            dispatch();
+                        }
+                    }
+                }
+            }, delay);
+        } else {
+            forget(job);
+        }
+        dispatch();
+    }
+
+    /**
+     * Reserves up to wanted more connections to a host for a running transfer that opens
+     * several at once, as far as maxPerHost allows. The transfer's own slot is not included.
+     *
+     * @return the number of connections reserved, to be given back with releaseConnections()
+     */
+    synchronized int reserveConnections(String host, int wanted) {
+        int reserved = Math.max(Math.min(wanted, maxPerHost - getRunning(host)), 0);
+        if (reserved > 0) {
+            runningPerHost.put(host, getRunning(host) + reserved);
+        }
+        return reserved;
+    }
+
+    synchronized void releaseConnections(String host, int count) {
+        if (count > 0) {
+            runningPerHost.put(host, getRunning(host) - count);
+            dispatch();
+        }
+    }
+
+    // A newer transfer may have taken over the id in the meantime.
+    private void forget(Job job) {
+        if (jobs.get(job.id) == job) {
+            jobs.remove(job.id);
+        }
+    }
+
+    private int getRunning(String host) {
+        Integer count = runningPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+}
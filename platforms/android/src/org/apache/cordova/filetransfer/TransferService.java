@@ -0,0 +1,62 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.filetransfer;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+
+/**
+ * Runs while persistent transfers are in progress.
+ *
+ * The transfers themselves run on the plugin's threads; a started service only tells the system
+ * that the process is still doing work after its activity went away, so it is not among the
+ * first to be killed. Should it be killed anyway, the transfer journal lets the transfers start
+ * again once a page reattaches to them.
+ */
+public class TransferService extends Service {
+    private static int activeTransfers;
+
+    /**
+     * Called when a persistent transfer starts. Every call must be matched by a call to release().
+     */
+    static synchronized void acquire(Context context) {
+        if (activeTransfers++ == 0) {
+            context.startService(new Intent(context, TransferService.class));
+        }
+    }
+
+    static synchronized void release(Context context) {
+        if (activeTransfers > 0 && --activeTransfers == 0) {
+            context.stopService(new Intent(context, TransferService.class));
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Transfers are restarted from the journal by the plugin, not by the service.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -26,10 +26,13 @@ import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.media.AudioManager;
+import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.security.Permission;
 import java.util.ArrayList;
 
@@ -59,10 +62,25 @@ public class AudioHandler extends CordovaPlugin {
     private int origVolumeStream = -1;
     private CallbackContext messageChannel;
 
+    // Clips up to this long are preloaded into SoundEffects, longer ones into the player pool
+    private static final int SHORT_CLIP_DURATION = 5000;
+    private SoundEffects soundEffects;                          // Preloaded short clips
+    private final PreparedPlayerPool playerPool = new PreparedPlayerPool();
+    private int warmStarts;                                     // Starts from preloaded or pooled audio
+    private int coldStarts;                                     // Starts that had to prepare a player
+
+    private static final int DEFAULT_CACHE_SIZE_MB = 50;
+    private AudioCache audioCache;                              // Remote files played before
+
+    private AudioCapture capture;                               // Microphone stream sent to JavaScript
+    private JSONObject captureOptions;                          // Options of a capture waiting for permission
+    private CallbackContext captureContext;
+
 
     public static String [] permissions = { Manifest.permission.RECORD_AUDIO, Manifest.permission.WRITE_EXTERNAL_STORAGE};
     public static int RECORD_AUDIO = 0;
     public static int WRITE_EXTERNAL_STORAGE = 1;
+    public static int CAPTURE_AUDIO = 2;
 
     public static final int PERMISSION_DENIED_ERROR = 20;
 
@@ -117,15 +135,26 @@ public class AudioHandler extends CordovaPlugin {
             this.stopRecordingAudio(args.getString(0));
         }
         else if (action.equals("startPlayingAudio")) {
-            String target = args.getString(1);
-            String fileUriStr;
-            try {
-                Uri targetUri = resourceApi.remapUri(Uri.parse(target));
-                fileUriStr = targetUri.toString();
-            } catch (IllegalArgumentException e) {
-                fileUriStr = target;
+            this.startPlayingAudio(args.getString(0), getPlaybackFile(args.getString(1)));
+        }
+        else if (action.equals("preloadAudio")) {
+            final String file = getPlaybackFile(args.getString(0));
+            final CallbackContext preloadContext = callbackContext;
+            cordova.getThreadPool().execute(new Runnable() {
+                public void run() {
+                    preloadAudio(file, preloadContext);
+                }
+            });
+            return true;
+        }
+        else if (action.equals("getStartStats")) {
+            JSONObject stats = new JSONObject();
+            synchronized (this) {
+                stats.put("warm", warmStarts);
+                stats.put("cold", coldStarts);
             }
-            this.startPlayingAudio(args.getString(0), FileHelper.stripFileProtocol(fileUriStr));
+            callbackContext.sendPluginResult(new PluginResult(status, stats));
+            return true;
         }
         else if (action.equals("seekToAudio")) {
             this.seekToAudio(args.getString(0), args.getInt(1));
@@ -146,6 +175,14 @@ public class AudioHandler extends CordovaPlugin {
             callbackContext.sendPluginResult(new PluginResult(status, f));
             return true;
         }
+        else if (action.equals("setPositionUpdates")) {
+            AudioPlayer audio = this.players.get(args.getString(0));
+            if (audio == null) {
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, "Unknown Audio Player " + args.getString(0)));
+                return true;
+            }
+            audio.setPositionUpdates(args.getInt(1));
+        }
         else if (action.equals("getDurationAudio")) {
             float f = this.getDurationAudio(args.getString(0), args.getString(1));
             callbackContext.sendPluginResult(new PluginResult(status, f));
@@ -161,6 +198,30 @@ public class AudioHandler extends CordovaPlugin {
             callbackContext.sendPluginResult(new PluginResult(status, b));
             return true;
         }
+        else if (action.equals("startCapture")) {
+            captureOptions = args.optJSONObject(0);
+            if (captureOptions == null) {
+                captureOptions = new JSONObject();
+            }
+            captureContext = callbackContext;
+            if (PermissionHelper.hasPermission(this, permissions[RECORD_AUDIO])) {
+                startCapture();
+            } else {
+                getMicPermission(CAPTURE_AUDIO);
+            }
+            return true;
+        }
+        else if (action.equals("captureReceived")) {
+            if (capture != null) {
+                capture.received();
+            }
+            return true;
+        }
+        else if (action.equals("stopCapture")) {
+            stopCapture();
+            callbackContext.success();
+            return true;
+        }
         else if (action.equals("messageChannel")) {
             messageChannel = callbackContext;
             return true;
@@ -178,6 +239,7 @@ public class AudioHandler extends CordovaPlugin {
      * Stop all audio players and recorders.
      */
     public void onDestroy() {
+        stopCapture();
         if (!players.isEmpty()) {
             onLastPlayerReleased();
         }
@@ -185,6 +247,13 @@ public class AudioHandler extends CordovaPlugin {
             audio.destroy();
         }
         this.players.clear();
+        this.playerPool.clear();
+        synchronized (this) {
+            if (this.soundEffects != null) {
+                this.soundEffects.release();
+                this.soundEffects = null;
+            }
+        }
     }
 
     /**
@@ -247,6 +316,112 @@ public class AudioHandler extends CordovaPlugin {
         return ret;
     }
 
+    /**
+     * Map a source passed from JavaScript to the file name used by the audio players.
+     */
+    private String getPlaybackFile(String target) {
+        String fileUriStr;
+        try {
+            Uri targetUri = webView.getResourceApi().remapUri(Uri.parse(target));
+            fileUriStr = targetUri.toString();
+        } catch (IllegalArgumentException e) {
+            fileUriStr = target;
+        }
+        return FileHelper.stripFileProtocol(fileUriStr);
+    }
+
+    /**
+     * Prepare an audio file so that playing it later starts without delay.
+     * Short clips are decoded into SoundEffects, longer ones get a prepared MediaPlayer.
+     * Remote files are downloaded into the AudioCache first.
+     * @param file				The name of the audio file
+     */
+    private void preloadAudio(String file, CallbackContext callbackContext) {
+        if (getSoundEffects().getDuration(file) >= 0 || playerPool.contains(file)) {
+            callbackContext.success();
+            return;
+        }
+
+        String source = file;
+        if (getAudioCache().canFetch(file)) {
+            File cached = null;
+            try {
+                cached = getAudioCache().fetch(file);
+            } catch (IOException e) {
+                Log.d(TAG, "Could not download " + file, e);
+                callbackContext.error(AudioPlayer.createErrorObject(AudioPlayer.MEDIA_ERR_NETWORK));
+                return;
+            }
+            if (cached == null) {
+                // Live streams and files that don't fit in the cache
+                callbackContext.error(AudioPlayer.createErrorObject(AudioPlayer.MEDIA_ERR_NONE_SUPPORTED));
+                return;
+            }
+            source = cached.getPath();
+        } else if (file.contains("http://") || file.contains("https://") || file.contains("rtsp://")) {
+            callbackContext.error(AudioPlayer.createErrorObject(AudioPlayer.MEDIA_ERR_NONE_SUPPORTED));
+            return;
+        }
+
+        MediaPlayer player = new MediaPlayer();
+        try {
+            AudioPlayer.setLocalDataSource(player, source, cordova.getActivity());
+            player.prepare();
+            int duration = player.getDuration();
+            if (duration >= 0 && duration <= SHORT_CLIP_DURATION) {
+                player.release();
+                getSoundEffects().load(file, source, duration, cordova.getActivity(), callbackContext);
+            } else {
+                playerPool.put(file, player);
+                callbackContext.success();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Could not preload " + file, e);
+            player.release();
+            callbackContext.error(AudioPlayer.createErrorObject(AudioPlayer.MEDIA_ERR_DECODE));
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Could not preload " + file, e);
+            player.release();
+            callbackContext.error(AudioPlayer.createErrorObject(AudioPlayer.MEDIA_ERR_DECODE));
+        }
+    }
+
+    synchronized SoundEffects getSoundEffects() {
+        if (soundEffects == null) {
+            soundEffects = new SoundEffects();
+        }
+        return soundEffects;
+    }
+
+    synchronized AudioCache getAudioCache() {
+        if (audioCache == null) {
+            long cacheSize = preferences.getInteger("MediaCacheSize", DEFAULT_CACHE_SIZE_MB) * 1024L * 1024L;
+            audioCache = new AudioCache(new File(cordova.getActivity().getCacheDir(), "cdv-media-cache"),
+                    cacheSize, cordova.getThreadPool());
+        }
+        return audioCache;
+    }
+
+    MediaPlayer takePreparedPlayer(String file) {
+        return playerPool.take(file);
+    }
+
+    void recyclePlayer(String file, MediaPlayer player) {
+        playerPool.put(file, player);
+    }
+
+    /**
+     * Count a player starting a file.
+     * @param warm				Whether the file was preloaded or pooled
+     */
+    synchronized void countStart(boolean warm) {
+        if (warm) {
+            warmStarts++;
+        } else {
+            coldStarts++;
+        }
+    }
+
     /**
      * Release the audio player instance to save memory.
      * @param id				The id of the audio player
@@ -263,6 +438,35 @@ public class AudioHandler extends CordovaPlugin {
         return true;
     }
 
+    /**
+     * Start sending the microphone's levels, and optionally its samples, to JavaScript.
+     * Replaces any capture already running.
+     */
+    private void startCapture() {
+        stopCapture();
+        try {
+            AudioCapture started = new AudioCapture(captureOptions.optInt("sampleRate", 16000),
+                    captureOptions.optInt("interval", 100), captureOptions.optBoolean("frames", false), captureContext);
+            started.start();
+            capture = started;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Could not start audio capture", e);
+            captureContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR,
+                    AudioPlayer.createErrorObject(AudioPlayer.MEDIA_ERR_NONE_SUPPORTED)));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Could not start audio capture", e);
+            captureContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR,
+                    AudioPlayer.createErrorObject(AudioPlayer.MEDIA_ERR_NONE_SUPPORTED)));
+        }
+    }
+
+    private void stopCapture() {
+        if (capture != null) {
+            capture.stop();
+            capture = null;
+        }
+    }
+
     /**
      * Start recording and save the specified file.
      * @param id				The id of the audio player
@@ -442,10 +646,15 @@ public class AudioHandler extends CordovaPlugin {
         {
             if(r == PackageManager.PERMISSION_DENIED)
             {
-                this.messageChannel.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, PERMISSION_DENIED_ERROR));
+                CallbackContext deniedContext = requestCode == CAPTURE_AUDIO ? this.captureContext : this.messageChannel;
+                deniedContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, PERMISSION_DENIED_ERROR));
                 return;
             }
         }
+        if (requestCode == CAPTURE_AUDIO) {
+            startCapture();
+            return;
+        }
         promptForRecord();
     }
 
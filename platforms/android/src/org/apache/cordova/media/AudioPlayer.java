@@ -18,6 +18,7 @@
 */
 package org.apache.cordova.media;
 
+import android.content.Context;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
@@ -25,6 +26,9 @@ import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.media.MediaRecorder;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.json.JSONException;
@@ -58,6 +62,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
                       };
 
     private static final String LOG_TAG = "AudioPlayer";
+    private static final int MIN_POSITION_INTERVAL = 50;
 
     // AudioPlayer message ids
     private static int MEDIA_STATE = 1;
@@ -67,10 +72,10 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
 
     // Media error codes
     private static int MEDIA_ERR_NONE_ACTIVE    = 0;
-    private static int MEDIA_ERR_ABORTED        = 1;
-//    private static int MEDIA_ERR_NETWORK        = 2;
-//    private static int MEDIA_ERR_DECODE         = 3;
-//    private static int MEDIA_ERR_NONE_SUPPORTED = 4;
+    static int MEDIA_ERR_ABORTED                = 1;
+    static int MEDIA_ERR_NETWORK                = 2;
+    static int MEDIA_ERR_DECODE                 = 3;
+    static int MEDIA_ERR_NONE_SUPPORTED         = 4;
 
     private AudioHandler handler;           // The AudioHandler object
     private String id;                      // The id of this player (used to identify Media object in JavaScript)
@@ -86,6 +91,34 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
     private MediaPlayer player = null;      // Audio player object
     private boolean prepareOnly = true;     // playback after file prepare flag
     private int seekOnPrepared = 0;     // seek to this location once media is prepared
+    private String playerFile = null;       // File loaded into the player
+    private boolean playerPrepared = false; // Whether the player is prepared and can be pooled
+    private boolean playerFailed = false;   // Whether the player reported an error
+    private float volume = 1.0f;            // Volume set by JavaScript
+
+    private int effectStream = 0;           // Stream of a clip played by SoundEffects, 0 if none
+    private long effectStarted;             // Uptime at which the clip started, as if it had never paused
+    private long effectPosition;            // Position at which the clip was paused, in msec
+    // Runs timed work on the thread that created this player, which is the thread every other
+    // call comes from, so the player and its state are never touched from two threads at once.
+    private final Handler bridgeHandler = new Handler(Looper.myLooper() != null ? Looper.myLooper() : Looper.getMainLooper());
+    private final Runnable effectCompletion = new Runnable() {
+        public void run() {
+            effectStream = 0;
+            setState(STATE.MEDIA_STOPPED);
+        }
+    };
+
+    private int positionInterval = 0;       // Msec between position updates, 0 if JavaScript doesn't want them
+    private long lastPositionSent = -1;     // Last position sent to JavaScript, in msec
+    private final Runnable positionUpdate = new Runnable() {
+        public void run() {
+            sendPositionUpdate();
+            if (positionInterval > 0 && state == STATE.MEDIA_RUNNING) {
+                bridgeHandler.postDelayed(this, positionInterval);
+            }
+        }
+    };
 
     /**
      * Constructor.
@@ -111,13 +144,34 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * Destroy player and stop audio playing or recording.
      */
     public void destroy() {
+        this.bridgeHandler.removeCallbacks(this.positionUpdate);
+        this.positionInterval = 0;
         // Stop any play or record
+        if (this.effectStream != 0) {
+            this.stopEffect();
+            this.setState(STATE.MEDIA_STOPPED);
+        }
         if (this.player != null) {
-            if ((this.state == STATE.MEDIA_RUNNING) || (this.state == STATE.MEDIA_PAUSED)) {
-                this.player.stop();
-                this.setState(STATE.MEDIA_STOPPED);
+            if (this.playerPrepared && !this.playerFailed && !this.isStreaming(this.playerFile)) {
+                // Keep the prepared player for the next AudioPlayer of the same file
+                if (this.state == STATE.MEDIA_RUNNING) {
+                    this.player.pause();
+                }
+                this.player.seekTo(0);
+                this.player.setVolume(1.0f, 1.0f);
+                this.player.setOnCompletionListener(null);
+                this.player.setOnPreparedListener(null);
+                if ((this.state == STATE.MEDIA_RUNNING) || (this.state == STATE.MEDIA_PAUSED)) {
+                    this.setState(STATE.MEDIA_STOPPED);
+                }
+                this.handler.recyclePlayer(this.playerFile, this.player);
+            } else {
+                if ((this.state == STATE.MEDIA_RUNNING) || (this.state == STATE.MEDIA_PAUSED)) {
+                    this.player.stop();
+                    this.setState(STATE.MEDIA_STOPPED);
+                }
+                this.player.release();
             }
-            this.player.release();
             this.player = null;
         }
         if (this.recorder != null) {
@@ -214,6 +268,9 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * @param file              The name of the audio file.
      */
     public void startPlaying(String file) {
+        if (this.startEffect(file)) {
+            return;
+        }
         if (this.readyPlayer(file) && this.player != null) {
             this.player.start();
             this.setState(STATE.MEDIA_RUNNING);
@@ -227,6 +284,11 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * Seek or jump to a new time in the track.
      */
     public void seekToPlaying(int milliseconds) {
+        if (this.effectStream != 0) {
+            // Clips played by SoundEffects can't seek, so continue with a MediaPlayer
+            this.stopEffect();
+            this.state = STATE.MEDIA_STOPPED;
+        }
         if (this.readyPlayer(this.audioFile)) {
             this.player.seekTo(milliseconds);
             Log.d(LOG_TAG, "Send a onStatus update for the new seek");
@@ -243,7 +305,13 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
     public void pausePlaying() {
 
         // If playing, then pause
-        if (this.state == STATE.MEDIA_RUNNING && this.player != null) {
+        if (this.state == STATE.MEDIA_RUNNING && this.effectStream != 0) {
+            this.bridgeHandler.removeCallbacks(this.effectCompletion);
+            this.handler.getSoundEffects().pause(this.effectStream);
+            this.effectPosition = SystemClock.uptimeMillis() - this.effectStarted;
+            this.setState(STATE.MEDIA_PAUSED);
+        }
+        else if (this.state == STATE.MEDIA_RUNNING && this.player != null) {
             this.player.pause();
             this.setState(STATE.MEDIA_PAUSED);
         }
@@ -257,7 +325,11 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * Stop playing the audio file.
      */
     public void stopPlaying() {
-        if ((this.state == STATE.MEDIA_RUNNING) || (this.state == STATE.MEDIA_PAUSED)) {
+        if (this.effectStream != 0) {
+            this.stopEffect();
+            this.setState(STATE.MEDIA_STOPPED);
+        }
+        else if ((this.state == STATE.MEDIA_RUNNING) || (this.state == STATE.MEDIA_PAUSED)) {
             this.player.pause();
             this.player.seekTo(0);
             Log.d(LOG_TAG, "stopPlaying is calling stopped");
@@ -285,16 +357,60 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * @return                  position in msec or -1 if not playing
      */
     public long getCurrentPosition() {
-        if ((this.state == STATE.MEDIA_RUNNING) || (this.state == STATE.MEDIA_PAUSED)) {
-            int curPos = this.player.getCurrentPosition();
+        long curPos = this.readPosition();
+        if (curPos >= 0) {
             sendStatusChange(MEDIA_POSITION, null, (curPos / 1000.0f));
-            return curPos;
+        }
+        return curPos;
+    }
+
+    /**
+     * Get current position of playback without telling JavaScript.
+     *
+     * @return                  position in msec or -1 if not playing
+     */
+    private long readPosition() {
+        if (this.effectStream != 0) {
+            return this.state == STATE.MEDIA_RUNNING ?
+                    SystemClock.uptimeMillis() - this.effectStarted : this.effectPosition;
+        }
+        else if (this.player != null &&
+                ((this.state == STATE.MEDIA_RUNNING) || (this.state == STATE.MEDIA_PAUSED))) {
+            return this.player.getCurrentPosition();
         }
         else {
             return -1;
         }
     }
 
+    /**
+     * Send the position to JavaScript at a regular interval while playing.
+     *
+     * @param interval          msec between updates, or 0 to stop them
+     */
+    public void setPositionUpdates(int interval) {
+        this.bridgeHandler.removeCallbacks(this.positionUpdate);
+        this.positionInterval = interval > 0 ? Math.max(interval, MIN_POSITION_INTERVAL) : 0;
+        this.lastPositionSent = -1;
+        if (this.positionInterval > 0 && this.state == STATE.MEDIA_RUNNING) {
+            this.bridgeHandler.post(this.positionUpdate);
+        }
+    }
+
+    /**
+     * Send the position to JavaScript if it moved since it was last sent.
+     */
+    private void sendPositionUpdate() {
+        if (this.positionInterval == 0 || this.state != STATE.MEDIA_RUNNING) {
+            return;
+        }
+        long curPos = this.readPosition();
+        if (curPos >= 0 && curPos != this.lastPositionSent) {
+            this.lastPositionSent = curPos;
+            sendStatusChange(MEDIA_POSITION, null, (curPos / 1000.0f));
+        }
+    }
+
     /**
      * Determine if playback file is streaming or local.
      * It is streaming if file name starts with "http://"
@@ -327,7 +443,14 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
         }
 
         // If audio file already loaded and started, then return duration
-        if (this.player != null) {
+        if (this.player != null || this.effectStream != 0) {
+            return this.duration;
+        }
+
+        // Preloaded clips know their duration
+        long effectDuration = this.handler.getSoundEffects().getDuration(file);
+        if (effectDuration >= 0) {
+            this.duration = effectDuration / 1000.0f;
             return this.duration;
         }
 
@@ -348,6 +471,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * @param player           The MediaPlayer that is ready for playback
      */
     public void onPrepared(MediaPlayer player) {
+        this.playerPrepared = true;
         // Listen for playback completion
         this.player.setOnCompletionListener(this);
         // seek to any location received while not prepared
@@ -388,6 +512,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      */
     public boolean onError(MediaPlayer player, int arg1, int arg2) {
         Log.d(LOG_TAG, "AudioPlayer.onError(" + arg1 + ", " + arg2 + ")");
+        this.playerFailed = true;
 
         // TODO: Not sure if this needs to be sent?
         this.player.stop();
@@ -404,10 +529,20 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * @param state
      */
     private void setState(STATE state) {
+        // Let position subscribers know where playback paused or stopped
+        if (this.state == STATE.MEDIA_RUNNING && state != STATE.MEDIA_RUNNING) {
+            this.bridgeHandler.removeCallbacks(this.positionUpdate);
+            sendPositionUpdate();
+        }
         if (this.state != state) {
             sendStatusChange(MEDIA_STATE, null, (float)state.ordinal());
         }
+        STATE previous = this.state;
         this.state = state;
+        // The position only moves while playing, so only tick then
+        if (previous != STATE.MEDIA_RUNNING && state == STATE.MEDIA_RUNNING && this.positionInterval > 0) {
+            this.bridgeHandler.post(this.positionUpdate);
+        }
     }
 
     /**
@@ -438,7 +573,76 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * @param volume
      */
     public void setVolume(float volume) {
-        this.player.setVolume(volume, volume);
+        this.volume = volume;
+        if (this.effectStream != 0) {
+            this.handler.getSoundEffects().setVolume(this.effectStream, volume);
+        }
+        if (this.player != null) {
+            this.player.setVolume(volume, volume);
+        }
+    }
+
+    /**
+     * Plays a clip preloaded into SoundEffects, or resumes it if it is paused.
+     * Only players that don't have a MediaPlayer play clips this way.
+     *
+     * @param file              The name of the audio file, or null to resume
+     * @return                  true if the clip is played by SoundEffects
+     */
+    private boolean startEffect(String file) {
+        SoundEffects effects = this.handler.getSoundEffects();
+        if (this.effectStream != 0) {
+            if (this.state == STATE.MEDIA_PAUSED) {
+                effects.resume(this.effectStream);
+                this.effectStarted = SystemClock.uptimeMillis() - this.effectPosition;
+                this.bridgeHandler.postDelayed(this.effectCompletion, (long) (this.duration * 1000) - this.effectPosition);
+                this.setState(STATE.MEDIA_RUNNING);
+            }
+            return true;
+        }
+        if (file == null || this.player != null ||
+                (this.state != STATE.MEDIA_NONE && this.state != STATE.MEDIA_STOPPED)) {
+            return false;
+        }
+        long effectDuration = effects.getDuration(file);
+        int stream = effects.play(file, this.volume);
+        if (stream == 0) {
+            return false;
+        }
+        this.setMode(MODE.PLAY);
+        this.audioFile = file;
+        this.effectStream = stream;
+        this.effectStarted = SystemClock.uptimeMillis();
+        this.duration = effectDuration / 1000.0f;
+        this.handler.countStart(true);
+        sendStatusChange(MEDIA_DURATION, null, this.duration);
+        this.setState(STATE.MEDIA_RUNNING);
+        this.bridgeHandler.postDelayed(this.effectCompletion, effectDuration);
+        return true;
+    }
+
+    private void stopEffect() {
+        this.bridgeHandler.removeCallbacks(this.effectCompletion);
+        this.handler.getSoundEffects().stop(this.effectStream);
+        this.effectStream = 0;
+    }
+
+    /**
+     * Takes over a player from the pool, which is already prepared for the file.
+     */
+    private void usePreparedPlayer(final MediaPlayer prepared, String file) {
+        this.player = prepared;
+        this.playerFile = file;
+        this.handler.countStart(true);
+        this.setState(STATE.MEDIA_STARTING);
+        // Carry on as if the player had just been prepared
+        this.bridgeHandler.post(new Runnable() {
+            public void run() {
+                if (player == prepared) {
+                    onPrepared(prepared);
+                }
+            }
+        });
     }
 
     /**
@@ -470,6 +674,11 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
             switch (this.state) {
                 case MEDIA_NONE:
                     if (this.player == null) {
+                        MediaPlayer prepared = this.handler.takePreparedPlayer(file);
+                        if (prepared != null) {
+                            this.usePreparedPlayer(prepared, file);
+                            return false;
+                        }
                         this.player = new MediaPlayer();
                     }
                     try {
@@ -535,7 +744,18 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
      * @throws IllegalArgumentException
      */
     private void loadAudioFile(String file) throws IllegalArgumentException, SecurityException, IllegalStateException, IOException {
-        if (this.isStreaming(file)) {
+        this.playerFile = file;
+        this.playerPrepared = false;
+        this.handler.countStart(false);
+        if (this.handler.getAudioCache().canCache(file)) {
+            this.player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            this.setMode(MODE.PLAY);
+            this.player.setOnPreparedListener(this);
+            // Play requests wait while the cache connects; JavaScript learns of the start once prepared
+            this.state = STATE.MEDIA_LOADING;
+            this.loadCachedFile(this.player, file);
+        }
+        else if (this.isStreaming(file)) {
             this.player.setDataSource(file);
             this.player.setAudioStreamType(AudioManager.STREAM_MUSIC);
             //if it's a streaming file, play mode is implied
@@ -545,22 +765,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
             this.player.prepareAsync();
         }
         else {
-            if (file.startsWith("/android_asset/")) {
-                String f = file.substring(15);
-                android.content.res.AssetFileDescriptor fd = this.handler.cordova.getActivity().getAssets().openFd(f);
-                this.player.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
-            }
-            else {
-                File fp = new File(file);
-                if (fp.exists()) {
-                    FileInputStream fileInputStream = new FileInputStream(file);
-                    this.player.setDataSource(fileInputStream.getFD());
-                    fileInputStream.close();
-                }
-                else {
-                    this.player.setDataSource(Environment.getExternalStorageDirectory().getPath() + "/" + file);
-                }
-            }
+            setLocalDataSource(this.player, file, this.handler.cordova.getActivity());
                 this.setState(STATE.MEDIA_STARTING);
                 this.player.setOnPreparedListener(this);
                 this.player.prepare();
@@ -570,6 +775,59 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
             }
     }
 
+    /**
+     * Load a remote file through the handler's AudioCache, off the calling thread as it
+     * has to wait for the server.
+     */
+    private void loadCachedFile(final MediaPlayer loading, final String file) {
+        this.handler.cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    handler.getAudioCache().setDataSource(loading, file);
+                    loading.prepareAsync();
+                } catch (Exception e) {
+                    // The player may have been released in the meantime
+                    if (player == loading) {
+                        Log.d(LOG_TAG, "AudioPlayer Error: could not load " + file, e);
+                        sendErrorStatus(MEDIA_ERR_ABORTED);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets a file from the assets or the file system as the data source of a player.
+     */
+    static void setLocalDataSource(MediaPlayer player, String file, Context context) throws IOException {
+        if (file.startsWith("/android_asset/")) {
+            String f = file.substring(15);
+            android.content.res.AssetFileDescriptor fd = context.getAssets().openFd(f);
+            player.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
+        }
+        else {
+            File fp = new File(file);
+            if (fp.exists()) {
+                FileInputStream fileInputStream = new FileInputStream(file);
+                player.setDataSource(fileInputStream.getFD());
+                fileInputStream.close();
+            }
+            else {
+                player.setDataSource(Environment.getExternalStorageDirectory().getPath() + "/" + file);
+            }
+        }
+    }
+
+    static JSONObject createErrorObject(int errorCode) {
+        JSONObject error = new JSONObject();
+        try {
+            error.put("code", errorCode);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to create error object", e);
+        }
+        return error;
+    }
+
     private void sendErrorStatus(int errorCode) {
         sendStatusChange(MEDIA_ERROR, errorCode, null);
     }
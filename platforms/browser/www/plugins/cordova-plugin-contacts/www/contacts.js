@@ -58,6 +58,41 @@ var contacts = {
             exec(win, errorCB, "Contacts", "search", [fields, options]);
         }
     },
+
+    /**
+     * Finds Contacts matching the search criteria a page at a time, and passes them
+     * to the success callback in chunks as they are read.
+     * @param fields that should be searched
+     * @param successCB success callback, called with each chunk of Contacts and
+     *                  whether it is the last one
+     * @param errorCB error callback
+     * @param {ContactFindOptions} options that can be applied to contact searching,
+     *                  plus offset, limit and chunkSize
+     * @return an object whose cancel() stops the search
+     */
+    findPaged:function(fields, successCB, errorCB, options) {
+        argscheck.checkArgs('afFO', 'contacts.findPaged', arguments);
+        var searchId = utils.createUUID();
+        if (!fields.length) {
+            errorCB && errorCB(new ContactError(ContactError.INVALID_ARGUMENT_ERROR));
+        } else {
+            // missing 'options' param means return all contacts
+            options = options || {filter: ''};
+            var win = function(result) {
+                var cs = [];
+                for (var i = 0, l = result.contacts.length; i < l; i++) {
+                    cs.push(contacts.create(result.contacts[i]));
+                }
+                successCB(cs, result.done);
+            };
+            exec(win, errorCB, "Contacts", "searchPaged", [fields, options, searchId]);
+        }
+        return {
+            cancel: function() {
+                exec(null, null, "Contacts", "cancelSearch", [searchId]);
+            }
+        };
+    },
     
     /**
      * This function picks contact from phone using contact picker UI
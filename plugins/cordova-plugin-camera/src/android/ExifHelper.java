@@ -164,6 +164,10 @@ public class ExifHelper {
     }
 
     public int getOrientation() {
+        // Images without the tag are upright
+        if (this.orientation == null) {
+            return 0;
+        }
         int o = Integer.parseInt(this.orientation);
 
         if (o == ExifInterface.ORIENTATION_NORMAL) {
@@ -0,0 +1,162 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+
+/**
+ * A pool of mutable bitmaps shared by plugins, so that bitmaps of similar sizes can be reused
+ * instead of being left to the garbage collector. Plugins borrow a bitmap with get() and hand it
+ * back with put() once they no longer need it.
+ *
+ * Bitmaps are reused for any size that fits in their allocation on KitKat and later, and only
+ * for the exact same size and configuration before. The pool keeps at most an eighth of the
+ * heap, drops the least recently returned bitmaps first, and is emptied when the system is low
+ * on memory.
+ */
+public class BitmapPool implements ComponentCallbacks2 {
+    // Pooled bitmaps are not handed out for requests smaller than this fraction of their size.
+    private static final int MAX_OVERSIZE = 4;
+
+    private static BitmapPool instance;
+
+    private final long maxSize;
+    // In the order they were returned, least recent first
+    private final LinkedHashMap<Bitmap, Integer> bitmaps = new LinkedHashMap<Bitmap, Integer>();
+    private long size;
+
+    /**
+     * Returns the shared pool, which trims itself on the memory callbacks of the application.
+     */
+    public static synchronized BitmapPool getInstance(Context context) {
+        if (instance == null) {
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+            context.getApplicationContext().registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    BitmapPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a mutable bitmap of the given size and configuration, cleared to transparent if it
+     * was pooled.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+        boolean reconfigurable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        int needed = width * height * bytesPerPixel(config);
+        Bitmap best = null;
+        for (Bitmap candidate : bitmaps.keySet()) {
+            if (reconfigurable) {
+                int candidateSize = bitmaps.get(candidate);
+                if (candidateSize >= needed && candidateSize <= needed * MAX_OVERSIZE
+                        && (best == null || candidateSize < bitmaps.get(best))) {
+                    best = candidate;
+                }
+            } else if (candidate.getWidth() == width && candidate.getHeight() == height && candidate.getConfig() == config) {
+                best = candidate;
+                break;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        size -= bitmaps.remove(best);
+        if (reconfigurable) {
+            best.reconfigure(width, height, config);
+        }
+        return best;
+    }
+
+    /**
+     * Hands a bitmap back to the pool. The caller must not use it afterwards. Bitmaps that can't
+     * be reused are recycled.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int bitmapSize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+        if (!bitmap.isMutable() || bitmapSize > maxSize / 2) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            if (!bitmaps.containsKey(bitmap)) {
+                bitmaps.put(bitmap, bitmapSize);
+                size += bitmapSize;
+            }
+            trimTo(maxSize);
+        }
+    }
+
+    private synchronized void trimTo(long targetSize) {
+        for (Iterator<Bitmap> iter = bitmaps.keySet().iterator(); iter.hasNext() && size > targetSize; ) {
+            Bitmap bitmap = iter.next();
+            size -= bitmaps.get(bitmap);
+            iter.remove();
+            bitmap.recycle();
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565) {
+            return 2;
+        }
+        // Deprecated ARGB_4444 is overestimated, which only makes the pool trim sooner.
+        return 4;
+    }
+
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTo(0);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimTo(maxSize / 2);
+        }
+    }
+
+    public void onLowMemory() {
+        trimTo(0);
+    }
+
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -0,0 +1,120 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+/**
+ * A pool of byte arrays shared by plugins, for the scratch buffers of stream copies and image
+ * decoding. Plugins borrow an array with get() and hand it back with put() once they no longer
+ * need it.
+ *
+ * Arrays are handed out in power-of-two sizes, so that each size bucket serves a range of
+ * requests. The pool keeps at most 1 MB, drops the least recently returned arrays first, and is
+ * emptied when the system is low on memory.
+ */
+public class ByteArrayPool implements ComponentCallbacks2 {
+    private static final int MAX_SIZE = 1024 * 1024;
+    private static final int MIN_LENGTH = 1024;
+
+    private static ByteArrayPool instance;
+
+    // In the order they were returned, least recent first
+    private final LinkedList<byte[]> arrays = new LinkedList<byte[]>();
+    private int size;
+
+    /**
+     * Returns the shared pool, which trims itself on the memory callbacks of the application.
+     */
+    public static synchronized ByteArrayPool getInstance(Context context) {
+        if (instance == null) {
+            instance = new ByteArrayPool();
+            context.getApplicationContext().registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns an array of at least minLength bytes. Its contents are undefined.
+     */
+    public byte[] get(int minLength) {
+        int length = MIN_LENGTH;
+        while (length < minLength && length > 0) {
+            length <<= 1;
+        }
+        if (length <= 0) {
+            return new byte[minLength];
+        }
+        synchronized (this) {
+            for (Iterator<byte[]> iter = arrays.descendingIterator(); iter.hasNext(); ) {
+                byte[] array = iter.next();
+                if (array.length == length) {
+                    iter.remove();
+                    size -= length;
+                    return array;
+                }
+            }
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Hands an array back to the pool. The caller must not use it afterwards.
+     */
+    public synchronized void put(byte[] array) {
+        // Only arrays from get() fit the buckets.
+        if (array == null || array.length < MIN_LENGTH || Integer.bitCount(array.length) != 1 || array.length > MAX_SIZE / 2) {
+            return;
+        }
+        for (byte[] pooled : arrays) {
+            if (pooled == array) {
+                return;
+            }
+        }
+        arrays.addLast(array);
+        size += array.length;
+        trimTo(MAX_SIZE);
+    }
+
+    private synchronized void trimTo(int targetSize) {
+        while (size > targetSize && !arrays.isEmpty()) {
+            size -= arrays.removeFirst().length;
+        }
+    }
+
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTo(0);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimTo(MAX_SIZE / 2);
+        }
+    }
+
+    public void onLowMemory() {
+        trimTo(0);
+    }
+
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -154,6 +154,17 @@ public abstract class ContactAccessor {
      */
     public abstract JSONArray search(JSONArray filter, JSONObject options);
 
+    /**
+     * Handles searching through SDK-specific contacts API, handing the matches
+     * to the listener a chunk at a time as they are read.
+     * @param offset number of matching contacts to skip
+     * @param limit max number of contacts to return
+     * @param chunkSize max number of contacts per chunk
+     * @return false if the listener stopped the search
+     */
+    public abstract boolean search(JSONArray filter, JSONObject options, int offset, int limit,
+            int chunkSize, SearchListener listener);
+
     /**
      * Handles searching through SDK-specific contacts API.
      * @throws JSONException
@@ -172,6 +183,17 @@ public abstract class ContactAccessor {
      */
     public abstract boolean remove(String id);
     
+    /**
+     * Receives the contacts of a search a chunk at a time.
+     */
+    interface SearchListener {
+        /**
+         * @param contacts the next contacts, in contact id order
+         * @return false to stop the search
+         */
+        boolean onContacts(JSONArray contacts);
+    }
+
    /**
      * A class that represents the where clause to be used in the database query 
      */
@@ -29,11 +29,10 @@ import java.sql.Date;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 
+import org.apache.cordova.ByteArrayPool;
 import org.apache.cordova.CordovaInterface;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -43,6 +42,7 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
@@ -86,6 +86,11 @@ public class ContactAccessorSdk5 extends ContactAccessor {
 
     private static final String ASSET_URL_PREFIX = "file:///android_asset/";
 
+    /**
+     * Contacts whose rows are fetched per query, well under SQLite's limit of 999 arguments.
+     */
+    private static final int MAX_QUERY_IDS = 200;
+
     /**
      * A static map that converts the JavaScript property name to Android database column name.
      */
@@ -143,69 +148,160 @@ public class ContactAccessorSdk5 extends ContactAccessor {
      */
     @Override
     public JSONArray search(JSONArray fields, JSONObject options) {
-        // Get the find options
-        String searchTerm = "";
         int limit = Integer.MAX_VALUE;
-        boolean multiple = true;
-        boolean hasPhoneNumber = false;
 
         if (options != null) {
-            searchTerm = options.optString("filter");
-            if (searchTerm.length() == 0) {
-                searchTerm = "%";
-            }
-            else {
-                searchTerm = "%" + searchTerm + "%";
-            }
-
             try {
-                multiple = options.getBoolean("multiple");
-                if (!multiple) {
+                if (!options.getBoolean("multiple")) {
                     limit = 1;
                 }
             } catch (JSONException e) {
                 // Multiple was not specified so we assume the default is true.
                 Log.e(LOG_TAG, e.getMessage(), e);
             }
+        }
 
-            try {
-                hasPhoneNumber = options.getBoolean("hasPhoneNumber");
-            } catch (JSONException e) {
-                // hasPhoneNumber was not specified so we assume the default is false.
+        final JSONArray contacts = new JSONArray();
+        search(fields, options, 0, limit, Integer.MAX_VALUE, new SearchListener() {
+            public boolean onContacts(JSONArray chunk) {
+                for (int i = 0; i < chunk.length(); i++) {
+                    contacts.put(chunk.opt(i));
+                }
+                return true;
             }
+        });
+        return contacts;
+    }
+
+    /**
+     * Searches for contacts like {@link #search(JSONArray, JSONObject)}, but hands them
+     * to the listener a chunk at a time as the rows are read.
+     *
+     * When every contact matches, they are read from a single cursor over the data rows.
+     * Otherwise the ids of the matching contacts are read in order from one cursor, and
+     * their data rows are fetched MAX_QUERY_IDS contacts at a time, so neither the ids nor
+     * the contacts are ever all held in memory.
+     *
+     * @param fields an array of items to be used as search criteria
+     * @param options that can be applied to contact searching
+     * @param offset number of matching contacts to skip
+     * @param limit max number of contacts to return
+     * @param chunkSize max number of contacts per chunk
+     * @param listener receives the contacts
+     * @return false if the listener stopped the search
+     */
+    @Override
+    public boolean search(JSONArray fields, JSONObject options, int offset, int limit,
+            int chunkSize, SearchListener listener) {
+        if (limit <= 0) {
+            return true;
         }
-        else {
-            searchTerm = "%";
+
+        // Get the find options
+        String searchTerm = "%";
+        boolean hasPhoneNumber = false;
+
+        if (options != null) {
+            searchTerm = options.optString("filter");
+            if (searchTerm.length() == 0) {
+                searchTerm = "%";
+            }
+            else {
+                searchTerm = "%" + searchTerm + "%";
+            }
+            hasPhoneNumber = options.optBoolean("hasPhoneNumber");
         }
 
         // Loop through the fields the user provided to see what data should be returned.
         HashMap<String, Boolean> populate = buildPopulationSet(options);
+        String[] projection = buildProjection(populate);
+        ContactChunks chunks = new ContactChunks(chunkSize, listener);
+        ContentResolver resolver = mApp.getActivity().getContentResolver();
+
+        // If the user is searching for every contact then there is nothing to match,
+        // so read every contact's rows in one go.
+        if (searchTerm.equals("%") && !hasPhoneNumber) {
+            Cursor c = resolver.query(ContactsContract.Data.CONTENT_URI,
+                    projection,
+                    null,
+                    null,
+                    ContactsContract.Data.CONTACT_ID + " ASC");
+            populateContacts(offset, limit, populate, c, chunks);
+            return chunks.flush();
+        }
 
         // Build the ugly where clause and where arguments for one big query.
         WhereOptions whereOptions = buildWhereClause(fields, searchTerm, hasPhoneNumber);
 
         // Get all the id's where the search term matches the fields passed in.
-        Cursor idCursor = mApp.getActivity().getContentResolver().query(ContactsContract.Data.CONTENT_URI,
+        // They come in order, so a contact matching on several rows is easy to skip.
+        Cursor idCursor = resolver.query(ContactsContract.Data.CONTENT_URI,
                 new String[] { ContactsContract.Data.CONTACT_ID },
                 whereOptions.getWhere(),
                 whereOptions.getWhereArgs(),
                 ContactsContract.Data.CONTACT_ID + " ASC");
 
-        // Create a set of unique ids
-        Set<String> contactIds = new HashSet<String>();
-        int idColumn = -1;
-        while (idCursor.moveToNext()) {
-            if (idColumn < 0) {
-                idColumn = idCursor.getColumnIndex(ContactsContract.Data.CONTACT_ID);
+        try {
+            ArrayList<String> contactIds = new ArrayList<String>();
+            String lastId = null;
+            int skipped = 0;
+            int found = 0;
+            while (found < limit && idCursor.moveToNext()) {
+                String contactId = idCursor.getString(0);
+                if (contactId.equals(lastId)) {
+                    continue;
+                }
+                lastId = contactId;
+                if (skipped < offset) {
+                    skipped++;
+                    continue;
+                }
+
+                contactIds.add(contactId);
+                found++;
+                if (contactIds.size() == MAX_QUERY_IDS) {
+                    if (!populateContactsById(resolver, contactIds, projection, populate, chunks)) {
+                        return false;
+                    }
+                    contactIds.clear();
+                }
             }
-            contactIds.add(idCursor.getString(idColumn));
+            if (!contactIds.isEmpty()
+                    && !populateContactsById(resolver, contactIds, projection, populate, chunks)) {
+                return false;
+            }
+        } finally {
+            idCursor.close();
         }
-        idCursor.close();
+        return chunks.flush();
+    }
 
-        // Build a query that only looks at ids
-        WhereOptions idOptions = buildIdClause(contactIds, searchTerm, hasPhoneNumber);
+    /**
+     * Reads the contacts with the given ids into the chunks.
+     * @return false if the listener stopped the search
+     */
+    private boolean populateContactsById(ContentResolver resolver, ArrayList<String> contactIds,
+            String[] projection, HashMap<String, Boolean> populate, ContactChunks chunks) {
+        StringBuilder where = new StringBuilder(ContactsContract.Data.CONTACT_ID + " IN (");
+        for (int i = 0; i < contactIds.size(); i++) {
+            where.append(i == 0 ? "?" : ",?");
+        }
+        where.append(")");
+
+        Cursor c = resolver.query(ContactsContract.Data.CONTENT_URI,
+                projection,
+                where.toString(),
+                contactIds.toArray(new String[contactIds.size()]),
+                ContactsContract.Data.CONTACT_ID + " ASC");
+        return populateContacts(0, Integer.MAX_VALUE, populate, c, chunks);
+    }
 
-        // Determine which columns we should be fetching.
+    /**
+     * Determine which columns we should be fetching.
+     * @param populate     whether or not you should populate a certain value
+     * @return             the projection of a data query
+     */
+    private String[] buildProjection(HashMap<String, Boolean> populate) {
         HashSet<String> columnsToFetch = new HashSet<String>();
         columnsToFetch.add(ContactsContract.Data.CONTACT_ID);
         columnsToFetch.add(ContactsContract.Data.RAW_CONTACT_ID);
@@ -272,19 +368,7 @@ public class ContactAccessorSdk5 extends ContactAccessor {
             columnsToFetch.add(CommonDataKinds.Photo._ID);
         }
 
-        // Do the id query
-        Cursor c = mApp.getActivity().getContentResolver().query(ContactsContract.Data.CONTENT_URI,
-                columnsToFetch.toArray(new String[] {}),
-                idOptions.getWhere(),
-                idOptions.getWhereArgs(),
-                ContactsContract.Data.CONTACT_ID + " ASC");
-
-        JSONArray contacts = populateContactArray(limit, populate, c);
-
-        if (!c.isClosed()) {
-            c.close();
-        }
-        return contacts;
+        return columnsToFetch.toArray(new String[] {});
     }
 
     /**
@@ -336,6 +420,29 @@ public class ContactAccessorSdk5 extends ContactAccessor {
      */
     private JSONArray populateContactArray(int limit,
             HashMap<String, Boolean> populate, Cursor c) {
+        final JSONArray contacts = new JSONArray();
+        populateContacts(0, limit, populate, c, new ContactSink() {
+            public boolean add(JSONObject contact) {
+                contacts.put(contact);
+                return true;
+            }
+        });
+        return contacts;
+    }
+
+    /**
+     * Reads contacts from the cursor you pass in, whose rows must be ordered by contact id,
+     * and closes it. The rows of skipped contacts are passed over without being read.
+     *
+     * @param skip         number of contacts to skip
+     * @param limit        max number of contacts to read after them
+     * @param populate     whether or not you should populate a certain value
+     * @param c            the cursor
+     * @param sink         receives the contacts
+     * @return             false if the sink stopped the reading
+     */
+    private boolean populateContacts(int skip, int limit,
+            HashMap<String, Boolean> populate, Cursor c, ContactSink sink) {
 
         String contactId = "";
         String rawId = "";
@@ -343,7 +450,11 @@ public class ContactAccessorSdk5 extends ContactAccessor {
         boolean newContact = true;
         String mimetype = "";
 
-        JSONArray contacts = new JSONArray();
+        int seen = 0;               // contacts finished so far, skipped or not
+        boolean empty = true;
+        boolean stopped = false;    // the sink wants no more contacts
+        boolean done = false;       // stopped, or the limit was reached
+
         JSONObject contact = new JSONObject();
         JSONArray organizations = new JSONArray();
         JSONArray addresses = new JSONArray();
@@ -362,24 +473,29 @@ public class ContactAccessorSdk5 extends ContactAccessor {
         int colNickname = c.getColumnIndex(CommonDataKinds.Nickname.NAME);
         int colEventType = c.getColumnIndex(CommonDataKinds.Event.TYPE);
 
-        if (c.getCount() > 0) {
-            while (c.moveToNext() && (contacts.length() <= (limit - 1))) {
+        if (limit > 0) {
+            while (c.moveToNext()) {
                 try {
                     contactId = c.getString(colContactId);
                     rawId = c.getString(colRawContactId);
 
                     // If we are in the first row set the oldContactId
-                    if (c.getPosition() == 0) {
+                    if (empty) {
+                        empty = false;
                         oldContactId = contactId;
                     }
 
                     // When the contact ID changes we need to push the Contact object
-                    // to the array of contacts and create new objects.
+                    // to the sink and create new objects.
                     if (!oldContactId.equals(contactId)) {
                         // Populate the Contact object with it's arrays
-                        // and push the contact into the contacts array
-                        contacts.put(populateContact(contact, organizations, addresses, phones,
-                                emails, ims, websites, photos));
+                        // and push the contact into the sink
+                        if (seen >= skip) {
+                            stopped = !sink.add(populateContact(contact, organizations, addresses, phones,
+                                    emails, ims, websites, photos));
+                            done = stopped || seen - skip + 1 >= limit;
+                        }
+                        seen++;
 
                         // Clean up the objects
                         contact = new JSONObject();
@@ -393,6 +509,16 @@ public class ContactAccessorSdk5 extends ContactAccessor {
 
                         // Set newContact to true as we are starting to populate a new contact
                         newContact = true;
+
+                        if (done) {
+                            break;
+                        }
+                    }
+
+                    // Rows of skipped contacts don't need to be read
+                    if (seen < skip) {
+                        oldContactId = contactId;
+                        continue;
                     }
 
                     // When we detect a new contact set the ID and display name.
@@ -472,49 +598,14 @@ public class ContactAccessorSdk5 extends ContactAccessor {
 
             }
 
-            // Push the last contact into the contacts array
-            if (contacts.length() < limit) {
-                contacts.put(populateContact(contact, organizations, addresses, phones,
+            // Push the last contact into the sink
+            if (!empty && !done && seen >= skip) {
+                stopped = !sink.add(populateContact(contact, organizations, addresses, phones,
                         emails, ims, websites, photos));
             }
         }
         c.close();
-        return contacts;
-    }
-
-    /**
-     * Builds a where clause all all the ids passed into the method
-     * @param contactIds a set of unique contact ids
-     * @param searchTerm what to search for
-     * @return an object containing the selection and selection args
-     */
-    private WhereOptions buildIdClause(Set<String> contactIds, String searchTerm, boolean hasPhoneNumber) {
-        WhereOptions options = new WhereOptions();
-
-        // If the user is searching for every contact then short circuit the method
-        // and return a shorter where clause to be searched.
-        if (searchTerm.equals("%") && !hasPhoneNumber) {
-            options.setWhere("(" + ContactsContract.Data.CONTACT_ID + " LIKE ? )");
-            options.setWhereArgs(new String[] { searchTerm });
-            return options;
-        }
-
-        // This clause means that there are specific ID's to be populated
-        Iterator<String> it = contactIds.iterator();
-        StringBuffer buffer = new StringBuffer("(");
-
-        while (it.hasNext()) {
-            buffer.append("'" + it.next() + "'");
-            if (it.hasNext()) {
-                buffer.append(",");
-            }
-        }
-        buffer.append(")");
-
-        options.setWhere(ContactsContract.Data.CONTACT_ID + " IN " + buffer.toString());
-        options.setWhereArgs(null);
-
-        return options;
+        return !stopped;
     }
 
     /**
@@ -561,6 +652,48 @@ public class ContactAccessorSdk5 extends ContactAccessor {
         return contact;
     }
 
+    /**
+     * Receives contacts as they are read from a cursor.
+     */
+    private interface ContactSink {
+        /**
+         * @return false to stop reading
+         */
+        boolean add(JSONObject contact);
+    }
+
+    /**
+     * Gathers contacts into chunks of a fixed size for a {@link SearchListener}.
+     */
+    private static class ContactChunks implements ContactSink {
+        private final int chunkSize;
+        private final SearchListener listener;
+        private JSONArray chunk = new JSONArray();
+        private boolean stopped;
+
+        ContactChunks(int chunkSize, SearchListener listener) {
+            this.chunkSize = Math.max(chunkSize, 1);
+            this.listener = listener;
+        }
+
+        public boolean add(JSONObject contact) {
+            chunk.put(contact);
+            return chunk.length() < chunkSize || flush();
+        }
+
+        /**
+         * Hands the contacts gathered so far to the listener.
+         * @return false if the listener stopped the search
+         */
+        boolean flush() {
+            if (!stopped && chunk.length() > 0) {
+                stopped = !listener.onContacts(chunk);
+                chunk = new JSONArray();
+            }
+            return !stopped;
+        }
+    }
+
   /**
    * Take the search criteria passed into the method and create a SQL WHERE clause.
    * @param fields the properties to search against
@@ -1614,10 +1747,11 @@ public class ContactAccessorSdk5 extends ContactAccessor {
      */
     private byte[] getPhotoBytes(String filename) {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ByteArrayPool bytePool = ByteArrayPool.getInstance(mApp.getActivity());
+        byte[] data = bytePool.get(8192);
         try {
             int bytesRead = 0;
             long totalBytesRead = 0;
-            byte[] data = new byte[8192];
             InputStream in = getPathFromUri(filename);
 
             while ((bytesRead = in.read(data, 0, data.length)) != -1 && totalBytesRead <= MAX_PHOTO_SIZE) {
@@ -1631,6 +1765,8 @@ public class ContactAccessorSdk5 extends ContactAccessor {
             Log.e(LOG_TAG, e.getMessage(), e);
         } catch (IOException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
+        } finally {
+            bytePool.put(data);
         }
         return buffer.toByteArray();
     }
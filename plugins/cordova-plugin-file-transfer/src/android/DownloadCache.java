@@ -0,0 +1,358 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.filetransfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+/**
+ * A content-addressed store of downloaded files.
+ *
+ * Each file is stored once, under the SHA-256 of its contents, no matter how many URLs it was
+ * downloaded from. An index maps URLs to the stored file and the validators (ETag,
+ * Last-Modified) of the response it came from, so that a repeated download only needs a
+ * conditional request, and is served from the store when the server answers 304.
+ *
+ * Targets are materialized as hard links to the stored file where the filesystem allows it, and
+ * as copies otherwise. As the app may write to a hard-linked target, a stored file is only used
+ * while its length and modification time are those it had when it was stored.
+ */
+class DownloadCache {
+    private static final String LOG_TAG = "FileTransfer";
+    private static final String INDEX_NAME = "index.json";
+
+    static final class Entry {
+        final String hash;
+        final String etag;
+        final String lastModified;
+        final long length;
+        final long storedModified;
+        long lastUsed;
+
+        Entry(String hash, String etag, String lastModified, long length, long storedModified, long lastUsed) {
+            this.hash = hash;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.storedModified = storedModified;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final File directory;
+    private final long maxSize;
+    // null until loaded from the index file
+    private HashMap<String, Entry> entries;
+
+    DownloadCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the entry of a URL if its file is still intact, or null.
+     */
+    synchronized Entry get(String url) {
+        Entry entry = getEntries().get(url);
+        if (entry == null) {
+            return null;
+        }
+        File blob = getBlob(entry.hash);
+        if (blob.length() != entry.length || blob.lastModified() != entry.storedModified) {
+            Log.d(LOG_TAG, "Dropping modified cache entry for " + url);
+            getEntries().remove(url);
+            deleteUnreferenced(entry.hash);
+            saveIndex();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Makes a request revalidate the cached copy of its URL.
+     */
+    static void addConditionalHeaders(HttpURLConnection connection, Entry entry) {
+        if (entry.etag != null) {
+            connection.setRequestProperty("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", entry.lastModified);
+        }
+    }
+
+    /**
+     * Puts the cached file of an entry at target, replacing any existing file.
+     */
+    synchronized void materialize(Entry entry, File target) throws IOException {
+        File blob = getBlob(entry.hash);
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Could not replace " + target);
+        }
+        File parent = target.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        if (!link(blob, target)) {
+            copy(blob, target);
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        saveIndex();
+    }
+
+    /**
+     * Records a freshly downloaded file. Responses without validators can't be revalidated, so
+     * they are not cached.
+     *
+     * @param digest the SHA-256 of the file
+     */
+    synchronized void put(String url, HttpURLConnection connection, File file, byte[] digest) throws IOException {
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (etag == null && lastModified == null) {
+            return;
+        }
+
+        String hash = IntegrityCheck.toHex(digest);
+        File blob = getBlob(hash);
+        if (blob.exists() && blob.length() == file.length()) {
+            // Already stored for another URL: share the stored copy.
+            File tmp = new File(file.getPath() + ".cdvcache");
+            if (link(blob, tmp)) {
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                }
+            }
+        } else {
+            directory.mkdirs();
+            if (!link(file, blob)) {
+                File tmp = new File(directory, hash + ".tmp");
+                copy(file, tmp);
+                if (!tmp.renameTo(blob)) {
+                    tmp.delete();
+                    throw new IOException("Could not store " + url + " in the cache");
+                }
+            }
+        }
+
+        Entry previous = getEntries().put(url, new Entry(hash, etag, lastModified, blob.length(),
+                blob.lastModified(), System.currentTimeMillis()));
+        if (previous != null && !previous.hash.equals(hash)) {
+            deleteUnreferenced(previous.hash);
+        }
+        evict();
+        saveIndex();
+    }
+
+    private File getBlob(String hash) {
+        return new File(directory, hash);
+    }
+
+    /*
+     * Drops the least recently used entries until the stored files fit in maxSize.
+     */
+    private void evict() {
+        HashMap<String, Long> sizes = new HashMap<String, Long>();
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            if (!sizes.containsKey(entry.hash)) {
+                sizes.put(entry.hash, entry.length);
+                total += entry.length;
+            }
+        }
+        if (total <= maxSize) {
+            return;
+        }
+
+        ArrayList<Map.Entry<String, Entry>> byAge = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        Collections.sort(byAge, new Comparator<Map.Entry<String, Entry>>() {
+            public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                long diff = a.getValue().lastUsed - b.getValue().lastUsed;
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (Map.Entry<String, Entry> oldest : byAge) {
+            if (total <= maxSize) {
+                break;
+            }
+            entries.remove(oldest.getKey());
+            if (deleteUnreferenced(oldest.getValue().hash)) {
+                total -= oldest.getValue().length;
+            }
+        }
+    }
+
+    /*
+     * Deletes a stored file once no entry refers to it anymore. Returns true if it was deleted.
+     */
+    private boolean deleteUnreferenced(String hash) {
+        for (Entry entry : entries.values()) {
+            if (entry.hash.equals(hash)) {
+                return false;
+            }
+        }
+        return getBlob(hash).delete();
+    }
+
+    private HashMap<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = new HashMap<String, Entry>();
+            loadIndex();
+        }
+        return entries;
+    }
+
+    private void loadIndex() {
+        File indexFile = new File(directory, INDEX_NAME);
+        if (!indexFile.exists()) {
+            return;
+        }
+        try {
+            JSONObject index = new JSONObject(readFully(indexFile));
+            for (Iterator<?> iter = index.keys(); iter.hasNext(); ) {
+                String url = iter.next().toString();
+                JSONObject entry = index.getJSONObject(url);
+                entries.put(url, new Entry(entry.getString("hash"),
+                        entry.isNull("etag") ? null : entry.getString("etag"),
+                        entry.isNull("lastModified") ? null : entry.getString("lastModified"),
+                        entry.getLong("length"), entry.getLong("storedModified"), entry.getLong("lastUsed")));
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read the download cache index", e);
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Could not read the download cache index", e);
+        }
+        // Remove stored files that the index lost track of.
+        HashSet<String> hashes = new HashSet<String>();
+        for (Entry entry : entries.values()) {
+            hashes.add(entry.hash);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().equals(INDEX_NAME) && !hashes.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void saveIndex() {
+        JSONObject index = new JSONObject();
+        try {
+            for (Map.Entry<String, Entry> mapping : entries.entrySet()) {
+                Entry entry = mapping.getValue();
+                JSONObject json = new JSONObject();
+                json.put("hash", entry.hash);
+                json.put("etag", entry.etag == null ? JSONObject.NULL : entry.etag);
+                json.put("lastModified", entry.lastModified == null ? JSONObject.NULL : entry.lastModified);
+                json.put("length", entry.length);
+                json.put("storedModified", entry.storedModified);
+                json.put("lastUsed", entry.lastUsed);
+                index.put(mapping.getKey(), json);
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        directory.mkdirs();
+        File tmp = new File(directory, INDEX_NAME + ".tmp");
+        try {
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                os.write(index.toString().getBytes("UTF-8"));
+            } finally {
+                os.close();
+            }
+            if (!tmp.renameTo(new File(directory, INDEX_NAME))) {
+                throw new IOException("Could not replace " + INDEX_NAME);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not write the download cache index", e);
+            tmp.delete();
+        }
+    }
+
+    /*
+     * Hard links are only available from Lollipop, and only within a filesystem.
+     */
+    private static boolean link(File existing, File newPath) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            Os.link(existing.getAbsolutePath(), newPath.getAbsolutePath());
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, bytesRead);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String readFully(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) > 0) {
+                os.write(buffer, 0, bytesRead);
+            }
+            return os.toString("UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+}
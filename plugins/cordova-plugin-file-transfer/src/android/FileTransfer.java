@@ -19,10 +19,12 @@
 package org.apache.cordova.filetransfer;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,11 +35,13 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
 import java.net.URLConnection;
+import java.security.MessageDigest;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.Inflater;
 
 import javax.net.ssl.HostnameVerifier;
@@ -61,16 +65,16 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.content.Context;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 import android.webkit.CookieManager;
 
 public class FileTransfer extends CordovaPlugin {
 
     private static final String LOG_TAG = "FileTransfer";
-    private static final String LINE_START = "--";
-    private static final String LINE_END = "\r\n";
     private static final String BOUNDARY =  "+++++";
 
     public static int FILE_NOT_FOUND_ERR = 1;
@@ -78,17 +82,40 @@ public class FileTransfer extends CordovaPlugin {
     public static int CONNECTION_ERR = 3;
     public static int ABORTED_ERR = 4;
     public static int NOT_MODIFIED_ERR = 5;
+    public static int INTEGRITY_ERR = 6;
 
     private static HashMap<String, RequestContext> activeRequests = new HashMap<String, RequestContext>();
+    private static final TransferScheduler scheduler = new TransferScheduler();
+    private static TransferJournal journal;
     private static final int MAX_BUFFER_SIZE = 16 * 1024;
+    private static final int DEFAULT_CACHE_SIZE_MB = 50;
+    // Transfers run on pool threads, which can share one buffer each.
+    private static final ThreadLocal<byte[]> transferBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_BUFFER_SIZE];
+        }
+    };
+
+    private DownloadCache downloadCache;
 
     private static final class RequestContext {
         String source;
         String target;
+        // Set while a download streams straight into its target, which an abort deletes
         File targetFile;
+        // Where a download that must not touch its target until it is complete is written
+        File tempFile;
+        PartialDownload partialDownload;
+        SegmentedDownload segmentedDownload;
         CallbackContext callbackContext;
         HttpURLConnection connection;
         boolean aborted;
+        boolean paused;
+        // Set for persistent downloads, which are recorded in the journal
+        String persistentId;
+        Context appContext;
+        boolean finished;
         RequestContext(String source, String target, CallbackContext callbackContext) {
             this.source = source;
             this.target = target;
@@ -96,13 +123,105 @@ public class FileTransfer extends CordovaPlugin {
         }
         void sendPluginResult(PluginResult pluginResult) {
             synchronized (this) {
-                if (!aborted) {
+                if (aborted || finished) {
+                    return;
+                }
+                // The callback is null while no page is attached to a persistent download.
+                if (callbackContext != null) {
                     callbackContext.sendPluginResult(pluginResult);
                 }
+                if (persistentId != null && !pluginResult.getKeepCallback()) {
+                    finished = true;
+                    if (callbackContext != null) {
+                        journal.remove(persistentId);
+                    } else {
+                        journal.setResult(persistentId, pluginResult);
+                    }
+                    TransferService.release(appContext);
+                }
+            }
+        }
+        /**
+         * Sends further results of a persistent download to a new page. Returns false if the
+         * download already finished, in which case its result is in the journal.
+         */
+        boolean attach(CallbackContext callbackContext) {
+            synchronized (this) {
+                if (finished) {
+                    return false;
+                }
+                this.callbackContext = callbackContext;
+                return true;
+            }
+        }
+        void detach() {
+            synchronized (this) {
+                callbackContext = null;
             }
         }
     }
 
+    /**
+     * Sends progress events for a transfer, at most once per minInterval milliseconds and
+     * minBytes bytes. Updates in between only change the progress object, so a fast transfer
+     * costs a bounded number of bridge messages. The last update is always sent by flush().
+     */
+    private static final class ProgressReporter implements ProgressListener {
+        static final long DEFAULT_MIN_INTERVAL = 100;
+
+        private final RequestContext context;
+        private final FileProgressResult progress;
+        private final long minInterval;
+        private final long minBytes;
+        // -1 until the first event was sent
+        private long lastSentTime = -1;
+        private long lastSentLoaded = -1;
+
+        ProgressReporter(RequestContext context, FileProgressResult progress, JSONObject options) {
+            this.context = context;
+            this.progress = progress;
+            this.minInterval = options.optLong("progressInterval", DEFAULT_MIN_INTERVAL);
+            this.minBytes = options.optLong("progressBytes", 0);
+        }
+
+        synchronized void update(long loaded) throws JSONException {
+            // Segment threads report their shared total without holding this lock, so a smaller
+            // total can arrive after a larger one.
+            loaded = Math.max(loaded, progress.getLoaded());
+            progress.setLoaded(loaded);
+            long now = SystemClock.elapsedRealtime();
+            if (lastSentTime >= 0 && (now - lastSentTime < minInterval || loaded - lastSentLoaded < minBytes)) {
+                return;
+            }
+            send(now);
+        }
+
+        public void onProgress(long loaded) {
+            try {
+                update(loaded);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Sends the latest progress, unless it was sent already.
+         */
+        synchronized void flush() throws JSONException {
+            if (progress.getLoaded() != lastSentLoaded) {
+                send(SystemClock.elapsedRealtime());
+            }
+        }
+
+        private void send(long now) throws JSONException {
+            lastSentTime = now;
+            lastSentLoaded = progress.getLoaded();
+            PluginResult progressResult = new PluginResult(PluginResult.Status.OK, progress.toJSONObject());
+            progressResult.setKeepCallback(true);
+            context.sendPluginResult(progressResult);
+        }
+    }
+
     /**
      * Adds an interface method to an InputStream to return the number of bytes
      * read from the raw stream. This is used to track total progress against
@@ -173,6 +292,18 @@ public class FileTransfer extends CordovaPlugin {
         }
     }
 
+    @Override
+    protected void pluginInitialize() {
+        scheduler.configure(cordova.getThreadPool(),
+                preferences.getInteger("FileTransferMaxConcurrent", TransferScheduler.DEFAULT_MAX_CONCURRENT),
+                preferences.getInteger("FileTransferMaxPerHost", TransferScheduler.DEFAULT_MAX_PER_HOST));
+        if (journal == null) {
+            journal = new TransferJournal(new File(cordova.getActivity().getFilesDir(), "cdv-transfer-journal.json"));
+        }
+        long cacheSize = preferences.getInteger("FileTransferCacheSize", DEFAULT_CACHE_SIZE_MB) * 1024L * 1024L;
+        downloadCache = new DownloadCache(new File(cordova.getActivity().getCacheDir(), "cdv-transfer-cache"), cacheSize);
+    }
+
     @Override
     public boolean execute(String action, JSONArray args, final CallbackContext callbackContext) throws JSONException {
         if (action.equals("upload") || action.equals("download")) {
@@ -190,10 +321,43 @@ public class FileTransfer extends CordovaPlugin {
             abort(objectId);
             callbackContext.success();
             return true;
+        } else if (action.equals("pause")) {
+            callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, pause(args.getString(0))));
+            return true;
+        } else if (action.equals("resume")) {
+            callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, resume(args.getString(0))));
+            return true;
+        } else if (action.equals("reattach")) {
+            reattach(args.getString(0), callbackContext);
+            return true;
         }
         return false;
     }
 
+    /**
+     * The page that started persistent downloads is going away; their results are kept in the
+     * journal until a new page reattaches.
+     */
+    @Override
+    public void onReset() {
+        detachPersistentRequests();
+    }
+
+    @Override
+    public void onDestroy() {
+        detachPersistentRequests();
+    }
+
+    private static void detachPersistentRequests() {
+        synchronized (activeRequests) {
+            for (RequestContext context : activeRequests.values()) {
+                if (context.persistentId != null) {
+                    context.detach();
+                }
+            }
+        }
+    }
+
     private static void addHeadersToRequest(URLConnection connection, JSONObject headers) {
         try {
             for (Iterator<?> iter = headers.keys(); iter.hasNext(); ) {
@@ -274,6 +438,11 @@ public class FileTransfer extends CordovaPlugin {
      * args[3] fileName      File name to be used on server
      * args[4] mimeType      Describes file content type
      * args[5] params        key:value pairs of user-defined parameters
+     * args[11] options      upload options; "progressInterval" and "progressBytes" limit how
+     *                       often progress events are sent; "priority" and "retries" are
+     *                       passed to the transfer scheduler; "gzip" compresses the request
+     *                       body; "files" lists further {source, fileKey, fileName, mimeType}
+     *                       to send in the same multipart request
      * @return FileUploadResult containing result of upload request
      */
     private void upload(final String source, final String target, JSONArray args, CallbackContext callbackContext) throws JSONException {
@@ -291,6 +460,9 @@ public class FileTransfer extends CordovaPlugin {
         final JSONObject headers = args.optJSONObject(8) == null ? params.optJSONObject("headers") : args.optJSONObject(8);
         final String objectId = args.getString(9);
         final String httpMethod = getArgument(args, 10, "POST");
+        final JSONObject options = args.optJSONObject(11) == null ? new JSONObject() : args.optJSONObject(11);
+        final boolean gzip = options.optBoolean("gzip");
+        final JSONArray extraFiles = options.optJSONArray("files");
 
         final CordovaResourceApi resourceApi = webView.getResourceApi();
 
@@ -305,10 +477,7 @@ public class FileTransfer extends CordovaPlugin {
         Log.d(LOG_TAG, "httpMethod: " + httpMethod);
 
         final Uri targetUri = resourceApi.remapUri(Uri.parse(target));
-        // Accept a path or a URI for the source.
-        Uri tmpSrc = Uri.parse(source);
-        final Uri sourceUri = resourceApi.remapUri(
-            tmpSrc.getScheme() != null ? tmpSrc : Uri.fromFile(new File(source)));
+        final Uri sourceUri = getSourceUri(resourceApi, source);
 
         int uriType = CordovaResourceApi.getUriType(targetUri);
         final boolean useHttps = uriType == CordovaResourceApi.URI_TYPE_HTTPS;
@@ -324,20 +493,23 @@ public class FileTransfer extends CordovaPlugin {
             activeRequests.put(objectId, context);
         }
 
-        cordova.getThreadPool().execute(new Runnable() {
+        scheduler.submit(objectId, targetUri.getHost(), options.optInt("priority"), options.optInt("retries"), new Runnable() {
             public void run() {
                 if (context.aborted) {
                     return;
                 }
+                boolean requeued = false;
                 HttpURLConnection conn = null;
                 HostnameVerifier oldHostnameVerifier = null;
                 SSLSocketFactory oldSocketFactory = null;
-                int totalBytes = 0;
+                long totalBytes = 0;
                 int fixedLength = -1;
+                MultipartEncoder encoder = null;
                 try {
                     // Create return object
                     FileUploadResult result = new FileUploadResult();
                     FileProgressResult progress = new FileProgressResult();
+                    ProgressReporter progressReporter = new ProgressReporter(context, progress, options);
 
                     //------------------ CLIENT REQUEST
                     // Open a HTTP connection to the URL based on protocol
@@ -382,53 +554,44 @@ public class FileTransfer extends CordovaPlugin {
                         addHeadersToRequest(conn, headers);
                     }
 
-                    /*
-                        * Store the non-file portions of the multipart data as a string, so that we can add it
-                        * to the contentSize, since it is part of the body of the HTTP request.
-                        */
-                    StringBuilder beforeData = new StringBuilder();
-                    try {
-                        for (Iterator<?> iter = params.keys(); iter.hasNext();) {
-                            Object key = iter.next();
-                            if(!String.valueOf(key).equals("headers"))
-                            {
-                              beforeData.append(LINE_START).append(BOUNDARY).append(LINE_END);
-                              beforeData.append("Content-Disposition: form-data; name=\"").append(key.toString()).append('"');
-                              beforeData.append(LINE_END).append(LINE_END);
-                              beforeData.append(params.getString(key.toString()));
-                              beforeData.append(LINE_END);
-                            }
+                    // Open the files and encode the text around them, so that the length of the body is known.
+                    encoder = new MultipartEncoder(BOUNDARY, multipartFormUpload);
+                    for (Iterator<?> iter = params.keys(); iter.hasNext();) {
+                        Object key = iter.next();
+                        if(!String.valueOf(key).equals("headers"))
+                        {
+                            encoder.addField(key.toString(), params.getString(key.toString()));
                         }
-                    } catch (JSONException e) {
-                        Log.e(LOG_TAG, e.getMessage(), e);
                     }
+                    encoder.addFile(fileKey, fileName, mimeType, resourceApi.openForRead(sourceUri));
+                    if (extraFiles != null) {
+                        for (int i = 0; i < extraFiles.length(); ++i) {
+                            JSONObject extraFile = extraFiles.getJSONObject(i);
+                            encoder.addFile(extraFile.optString("fileKey", fileKey), extraFile.optString("fileName", fileName),
+                                    extraFile.optString("mimeType", mimeType), resourceApi.openForRead(getSourceUri(resourceApi, extraFile.getString("source"))));
+                        }
+                    }
+                    encoder.finish();
 
-                    beforeData.append(LINE_START).append(BOUNDARY).append(LINE_END);
-                    beforeData.append("Content-Disposition: form-data; name=\"").append(fileKey).append("\";");
-                    beforeData.append(" filename=\"").append(fileName).append('"').append(LINE_END);
-                    beforeData.append("Content-Type: ").append(mimeType).append(LINE_END).append(LINE_END);
-                    byte[] beforeDataBytes = beforeData.toString().getBytes("UTF-8");
-                    byte[] tailParamsBytes = (LINE_END + LINE_START + BOUNDARY + LINE_START + LINE_END).getBytes("UTF-8");
-
-
-                    // Get a input stream of the file on the phone
-                    OpenForReadResult readResult = resourceApi.openForRead(sourceUri);
-
-                    int stringLength = beforeDataBytes.length + tailParamsBytes.length;
-                    if (readResult.length >= 0) {
-                        fixedLength = (int)readResult.length;
-                        if (multipartFormUpload)
-                            fixedLength += stringLength;
+                    long contentLength = encoder.getContentLength();
+                    if (contentLength >= 0) {
                         progress.setLengthComputable(true);
-                        progress.setTotal(fixedLength);
+                        progress.setTotal(contentLength);
+                        if (contentLength <= Integer.MAX_VALUE) {
+                            fixedLength = (int)contentLength;
+                        }
                     }
-                    Log.d(LOG_TAG, "Content Length: " + fixedLength);
+                    Log.d(LOG_TAG, "Content Length: " + contentLength);
                     // setFixedLengthStreamingMode causes and OutOfMemoryException on pre-Froyo devices.
                     // http://code.google.com/p/android/issues/detail?id=3164
                     // It also causes OOM if HTTPS is used, even on newer devices.
                     boolean useChunkedMode = chunkedMode && (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO || useHttps);
-                    useChunkedMode = useChunkedMode || (fixedLength == -1);
+                    // The length of a compressed body isn't known until it was sent.
+                    useChunkedMode = useChunkedMode || (fixedLength == -1) || gzip;
 
+                    if (gzip) {
+                        conn.setRequestProperty("Content-Encoding", "gzip");
+                    }
                     if (useChunkedMode) {
                         conn.setChunkedStreamingMode(MAX_BUFFER_SIZE);
                         // Although setChunkedStreamingMode sets this header, setting it explicitly here works
@@ -449,49 +612,20 @@ public class FileTransfer extends CordovaPlugin {
                             }
                             context.connection = conn;
                         }
-
-                        if (multipartFormUpload) {
-                            //We don't want to change encoding, we just want this to write for all Unicode.
-                            sendStream.write(beforeDataBytes);
-                            totalBytes += beforeDataBytes.length;
+                        if (gzip) {
+                            sendStream = new GZIPOutputStream(sendStream, MAX_BUFFER_SIZE);
                         }
 
-                        // create a buffer of maximum size
-                        int bytesAvailable = readResult.inputStream.available();
-                        int bufferSize = Math.min(bytesAvailable, MAX_BUFFER_SIZE);
-                        byte[] buffer = new byte[bufferSize];
-
-                        // read file and write it into form...
-                        int bytesRead = readResult.inputStream.read(buffer, 0, bufferSize);
-
-                        long prevBytesRead = 0;
-                        while (bytesRead > 0) {
-                            totalBytes += bytesRead;
-                            result.setBytesSent(totalBytes);
-                            sendStream.write(buffer, 0, bytesRead);
-                            if (totalBytes > prevBytesRead + 102400) {
-                                prevBytesRead = totalBytes;
-                                Log.d(LOG_TAG, "Uploaded " + totalBytes + " of " + fixedLength + " bytes");
-                            }
-                            bytesAvailable = readResult.inputStream.available();
-                            bufferSize = Math.min(bytesAvailable, MAX_BUFFER_SIZE);
-                            bytesRead = readResult.inputStream.read(buffer, 0, bufferSize);
-
-                            // Send a progress event.
-                            progress.setLoaded(totalBytes);
-                            PluginResult progressResult = new PluginResult(PluginResult.Status.OK, progress.toJSONObject());
-                            progressResult.setKeepCallback(true);
-                            context.sendPluginResult(progressResult);
-                        }
+                        totalBytes = encoder.writeTo(sendStream, transferBuffer.get(), progressReporter);
+                        result.setBytesSent(totalBytes);
+                        progressReporter.flush();
 
-                        if (multipartFormUpload) {
-                            // send multipart form data necessary after file data...
-                            sendStream.write(tailParamsBytes);
-                            totalBytes += tailParamsBytes.length;
+                        if (gzip) {
+                            ((GZIPOutputStream) sendStream).finish();
                         }
                         sendStream.flush();
                     } finally {
-                        safeClose(readResult.inputStream);
+                        encoder.close();
                         safeClose(sendStream);
                     }
                     synchronized (context) {
@@ -515,7 +649,7 @@ public class FileTransfer extends CordovaPlugin {
                         }
 
                         ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(1024, conn.getContentLength()));
-                        byte[] buffer = new byte[1024];
+                        byte[] buffer = transferBuffer.get();
                         int bytesRead = 0;
                         // write bytes to file
                         while ((bytesRead = inStream.read(buffer)) > 0) {
@@ -545,7 +679,10 @@ public class FileTransfer extends CordovaPlugin {
                     JSONObject error = createFileTransferError(CONNECTION_ERR, source, target, conn, e);
                     Log.e(LOG_TAG, error.toString(), e);
                     Log.e(LOG_TAG, "Failed after uploading " + totalBytes + " of " + fixedLength + " bytes.");
-                    context.sendPluginResult(new PluginResult(PluginResult.Status.IO_EXCEPTION, error));
+                    requeued = requeueOrRetry(objectId, context);
+                    if (!requeued) {
+                        context.sendPluginResult(new PluginResult(PluginResult.Status.IO_EXCEPTION, error));
+                    }
                 } catch (JSONException e) {
                     Log.e(LOG_TAG, e.getMessage(), e);
                     context.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
@@ -555,8 +692,13 @@ public class FileTransfer extends CordovaPlugin {
                     Log.e(LOG_TAG, error.toString(), t);
                     context.sendPluginResult(new PluginResult(PluginResult.Status.IO_EXCEPTION, error));
                 } finally {
-                    synchronized (activeRequests) {
-                        activeRequests.remove(objectId);
+                    if (encoder != null) {
+                        encoder.close();
+                    }
+                    if (!requeued) {
+                        synchronized (activeRequests) {
+                            activeRequests.remove(objectId);
+                        }
                     }
 
                     if (conn != null) {
@@ -573,6 +715,13 @@ public class FileTransfer extends CordovaPlugin {
         });
     }
 
+    // Accept a path or a URI for the source.
+    private static Uri getSourceUri(CordovaResourceApi resourceApi, String source) {
+        Uri tmpSrc = Uri.parse(source);
+        return resourceApi.remapUri(
+            tmpSrc.getScheme() != null ? tmpSrc : Uri.fromFile(new File(source)));
+    }
+
     private static void safeClose(Closeable stream) {
         if (stream != null) {
             try {
@@ -726,6 +875,20 @@ public class FileTransfer extends CordovaPlugin {
      *
      * @param source        URL of the server to receive the file
      * @param target            Full path of the file on the file system
+     *
+     * args[2] trustEveryone  Whether to accept any certificate
+     * args[3] objectId       Id of the FileTransfer object, used to abort
+     * args[4] headers        key:value pairs of request headers
+     * args[5] options        download options; "resume" keeps the received bytes when the
+     *                        download fails, and continues from there on the next attempt;
+     *                        "segments" fetches large files as up to that many parallel ranges;
+     *                        "progressInterval" and "progressBytes" limit how often progress
+     *                        events are sent; "priority" and "retries" are passed to the
+     *                        transfer scheduler; "cache" revalidates and reuses earlier
+     *                        downloads of the same URL through the download cache;
+     *                        "persistent" records the download in the journal, so a new
+     *                        page can reattach to it by id; "sha256" and "md5" are hex digests
+     *                        the downloaded file must match
      */
     private void download(final String source, final String target, JSONArray args, CallbackContext callbackContext) throws JSONException {
         Log.d(LOG_TAG, "download " + source + " to " +  target);
@@ -735,6 +898,11 @@ public class FileTransfer extends CordovaPlugin {
         final boolean trustEveryone = args.optBoolean(2);
         final String objectId = args.getString(3);
         final JSONObject headers = args.optJSONObject(4);
+        final JSONObject options = args.optJSONObject(5) == null ? new JSONObject() : args.optJSONObject(5);
+        final boolean resume = options.optBoolean("resume");
+        final int segments = options.optInt("segments", 1);
+        final boolean useCache = options.optBoolean("cache");
+        final boolean persistent = options.optBoolean("persistent");
 
         final Uri sourceUri = resourceApi.remapUri(Uri.parse(source));
         // Accept a path or a URI for the source.
@@ -792,35 +960,79 @@ public class FileTransfer extends CordovaPlugin {
 
 
         final RequestContext context = new RequestContext(source, target, callbackContext);
+        if (persistent) {
+            context.persistentId = objectId;
+            context.appContext = cordova.getActivity().getApplicationContext();
+            journal.add(objectId, args);
+            TransferService.acquire(context.appContext);
+        }
         synchronized (activeRequests) {
             activeRequests.put(objectId, context);
         }
 
-        cordova.getThreadPool().execute(new Runnable() {
+        String host = isLocalTransfer ? null : sourceUri.getHost();
+        scheduler.submit(objectId, host, options.optInt("priority"), options.optInt("retries"), new Runnable() {
             public void run() {
                 if (context.aborted) {
                     return;
                 }
+                boolean requeued = false;
                 HttpURLConnection connection = null;
                 HostnameVerifier oldHostnameVerifier = null;
                 SSLSocketFactory oldSocketFactory = null;
                 File file = null;
                 PluginResult result = null;
                 TrackingInputStream inputStream = null;
+                PartialDownload partial = null;
                 boolean cached = false;
+                DownloadCache.Entry cacheEntry = null;
+                boolean fromCache = false;
+                MessageDigest digest = null;
+                IntegrityCheck integrity = null;
+                // The download is written here and moved to the target once it is complete.
+                File tempFile = null;
 
                 OutputStream outputStream = null;
                 try {
                     OpenForReadResult readResult = null;
 
                     file = resourceApi.mapUriToFile(targetUri);
-                    context.targetFile = file;
+                    integrity = IntegrityCheck.fromOptions(options);
+                    // Cached downloads take precedence over resumable and segmented ones.
+                    boolean cacheable = useCache && !isLocalTransfer && file != null;
+                    if (cacheable) {
+                        cacheEntry = downloadCache.get(source);
+                        if (cacheEntry != null && integrity != null && !integrity.isSatisfiedBy(cacheEntry.hash)) {
+                            // The cached copy can't be verified without reading it, so download it again.
+                            cacheEntry = null;
+                        }
+                    }
+                    if (resume && !cacheable && !isLocalTransfer && file != null) {
+                        partial = new PartialDownload(source, file);
+                        synchronized (context) {
+                            context.partialDownload = partial;
+                        }
+                    } else if ((integrity != null || cacheable) && file != null) {
+                        // Keeps the previous target if the download fails verification. The target
+                        // may also be a link to a cached file, which must not be overwritten.
+                        tempFile = new File(file.getPath() + ".download");
+                        synchronized (context) {
+                            context.tempFile = tempFile;
+                        }
+                    }
 
                     Log.d(LOG_TAG, "Download file:" + sourceUri);
 
                     FileProgressResult progress = new FileProgressResult();
+                    ProgressReporter progressReporter = new ProgressReporter(context, progress, options);
+
+                    // Resumable downloads are always fetched in a single stream.
+                    boolean segmented = segments > 1 && partial == null && !cacheable && integrity == null && !isLocalTransfer && file != null
+                            && downloadInSegments(context, sourceUri, useHttps, trustEveryone, headers, file, segments, progress, progressReporter);
 
-                    if (isLocalTransfer) {
+                    if (segmented) {
+                        Log.d(LOG_TAG, "Downloaded in segments: " + sourceUri);
+                    } else if (isLocalTransfer) {
                         readResult = resourceApi.openForRead(sourceUri);
                         if (readResult.length != -1) {
                             progress.setLengthComputable(true);
@@ -851,8 +1063,16 @@ public class FileTransfer extends CordovaPlugin {
                             connection.setRequestProperty("cookie", cookie);
                         }
 
-                        // This must be explicitly set for gzip progress tracking to work.
-                        connection.setRequestProperty("Accept-Encoding", "gzip");
+                        if (partial != null) {
+                            partial.prepareRequest(connection);
+                        } else {
+                            // This must be explicitly set for gzip progress tracking to work.
+                            connection.setRequestProperty("Accept-Encoding", "gzip");
+                        }
+
+                        if (cacheEntry != null) {
+                            DownloadCache.addConditionalHeaders(connection, cacheEntry);
+                        }
 
                         // Handle the other headers
                         if (headers != null) {
@@ -860,12 +1080,24 @@ public class FileTransfer extends CordovaPlugin {
                         }
 
                         connection.connect();
-                        if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        if (cacheEntry != null && connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                            fromCache = true;
+                            connection.disconnect();
+                            Log.d(LOG_TAG, "Serving from the download cache: " + source);
+                            downloadCache.materialize(cacheEntry, file);
+                        } else if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
                             cached = true;
                             connection.disconnect();
                             Log.d(LOG_TAG, "Resource not modified: " + source);
                             JSONObject error = createFileTransferError(NOT_MODIFIED_ERR, source, target, connection, null);
                             result = new PluginResult(PluginResult.Status.ERROR, error);
+                        } else if (partial != null) {
+                            boolean hasBody = partial.handleResponse(connection);
+                            if (partial.getTotalLength() >= 0) {
+                                progress.setLengthComputable(true);
+                                progress.setTotal(partial.getTotalLength());
+                            }
+                            inputStream = hasBody ? getInputStream(connection) : new SimpleTrackingInputStream(new ByteArrayInputStream(new byte[0]));
                         } else {
                             if (connection.getContentEncoding() == null || connection.getContentEncoding().equalsIgnoreCase("gzip")) {
                                 // Only trust content-length header if we understand
@@ -876,40 +1108,92 @@ public class FileTransfer extends CordovaPlugin {
                                 }
                             }
                             inputStream = getInputStream(connection);
+                            if (cacheable && connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                                digest = MessageDigest.getInstance("SHA-256");
+                            }
                         }
                     }
 
                     if (!cached) {
-                        try {
-                            synchronized (context) {
-                                if (context.aborted) {
-                                    return;
+                        if (!segmented && !fromCache) {
+                            try {
+                                synchronized (context) {
+                                    if (context.aborted) {
+                                        return;
+                                    }
+                                    context.connection = connection;
                                 }
-                                context.connection = connection;
-                            }
 
-                            // write bytes to file
-                            byte[] buffer = new byte[MAX_BUFFER_SIZE];
-                            int bytesRead = 0;
-                            outputStream = resourceApi.openOutputStream(targetUri);
-                            while ((bytesRead = inputStream.read(buffer)) > 0) {
-                                outputStream.write(buffer, 0, bytesRead);
-                                // Send a progress event.
-                                progress.setLoaded(inputStream.getTotalRawBytesRead());
-                                PluginResult progressResult = new PluginResult(PluginResult.Status.OK, progress.toJSONObject());
-                                progressResult.setKeepCallback(true);
-                                context.sendPluginResult(progressResult);
+                                // write bytes to file
+                                byte[] buffer = transferBuffer.get();
+                                int bytesRead = 0;
+                                long offset = partial != null ? partial.getOffset() : 0;
+                                if (partial != null) {
+                                    if (integrity != null && offset > 0) {
+                                        integrity.update(partial.getDataFile(), offset, buffer);
+                                    }
+                                    outputStream = partial.openOutputStream();
+                                } else if (tempFile != null) {
+                                    outputStream = new FileOutputStream(tempFile);
+                                } else {
+                                    synchronized (context) {
+                                        context.targetFile = file;
+                                    }
+                                    outputStream = resourceApi.openOutputStream(targetUri);
+                                }
+                                while ((bytesRead = inputStream.read(buffer)) > 0) {
+                                    outputStream.write(buffer, 0, bytesRead);
+                                    if (integrity != null) {
+                                        integrity.update(buffer, 0, bytesRead);
+                                    }
+                                    if (digest != null) {
+                                        digest.update(buffer, 0, bytesRead);
+                                    }
+                                    // Send a progress event.
+                                    progressReporter.update(offset + inputStream.getTotalRawBytesRead());
+                                }
+                                progressReporter.flush();
+                            } finally {
+                                synchronized (context) {
+                                    context.connection = null;
+                                }
+                                safeClose(inputStream);
+                                safeClose(outputStream);
                             }
-                        } finally {
+                            if (integrity != null) {
+                                integrity.verify();
+                            }
+                            if (tempFile != null) {
+                                synchronized (context) {
+                                    if (context.aborted) {
+                                        return;
+                                    }
+                                    // rename() replaces an existing target atomically
+                                    if (!tempFile.renameTo(file)) {
+                                        throw new IOException("Could not move the download to " + file);
+                                    }
+                                }
+                            }
+                        }
+                        if (partial != null) {
                             synchronized (context) {
-                                context.connection = null;
+                                if (context.aborted) {
+                                    return;
+                                }
+                                partial.complete();
                             }
-                            safeClose(inputStream);
-                            safeClose(outputStream);
                         }
 
                         Log.d(LOG_TAG, "Saved file: " + target);
 
+                        if (digest != null) {
+                            try {
+                                downloadCache.put(source, connection, file, digest.digest());
+                            } catch (IOException e) {
+                                // The download itself succeeded.
+                                Log.w(LOG_TAG, "Could not add " + source + " to the download cache", e);
+                            }
+                        }
 
                         // create FileEntry object
                         Class webViewClass = webView.getClass();
@@ -930,7 +1214,6 @@ public class FileTransfer extends CordovaPlugin {
                             }
                         }
                         file = resourceApi.mapUriToFile(targetUri);
-                        context.targetFile = file;
                         FileUtils filePlugin = (FileUtils) pm.getPlugin("File");
                         if (filePlugin != null) {
                             JSONObject fileEntry = filePlugin.getEntryForFile(file);
@@ -950,9 +1233,19 @@ public class FileTransfer extends CordovaPlugin {
                     JSONObject error = createFileTransferError(FILE_NOT_FOUND_ERR, source, target, connection, e);
                     Log.e(LOG_TAG, error.toString(), e);
                     result = new PluginResult(PluginResult.Status.IO_EXCEPTION, error);
+                } catch (IntegrityException e) {
+                    JSONObject error = createFileTransferError(INTEGRITY_ERR, source, target, connection, e);
+                    Log.e(LOG_TAG, error.toString(), e);
+                    // Corrupt partial data must not be resumed from.
+                    if (partial != null) {
+                        partial.discard();
+                    }
+                    requeued = requeueOrRetry(objectId, context);
+                    result = new PluginResult(PluginResult.Status.IO_EXCEPTION, error);
                 } catch (IOException e) {
                     JSONObject error = createFileTransferError(CONNECTION_ERR, source, target, connection, e);
                     Log.e(LOG_TAG, error.toString(), e);
+                    requeued = requeueOrRetry(objectId, context);
                     result = new PluginResult(PluginResult.Status.IO_EXCEPTION, error);
                 } catch (JSONException e) {
                     Log.e(LOG_TAG, e.getMessage(), e);
@@ -962,10 +1255,6 @@ public class FileTransfer extends CordovaPlugin {
                     Log.e(LOG_TAG, error.toString(), e);
                     result = new PluginResult(PluginResult.Status.IO_EXCEPTION, error);
                 } finally {
-                    synchronized (activeRequests) {
-                        activeRequests.remove(objectId);
-                    }
-
                     if (connection != null) {
                         // Revert back to the proper verifier and socket factories
                         if (trustEveryone && useHttps) {
@@ -978,16 +1267,192 @@ public class FileTransfer extends CordovaPlugin {
                     if (result == null) {
                         result = new PluginResult(PluginResult.Status.ERROR, createFileTransferError(CONNECTION_ERR, source, target, connection, null));
                     }
-                    // Remove incomplete download.
-                    if (!cached && result.getStatus() != PluginResult.Status.OK.ordinal() && file != null) {
-                        file.delete();
+                    // Remove incomplete download. Resumable downloads keep their partial data instead.
+                    if (!cached && result.getStatus() != PluginResult.Status.OK.ordinal() && file != null && partial == null) {
+                        if (tempFile != null) {
+                            tempFile.delete();
+                        } else {
+                            file.delete();
+                        }
+                    }
+                    if (!requeued) {
+                        // Sent before the request is removed, so reattach() either finds it
+                        // running or finds its result in the journal.
+                        context.sendPluginResult(result);
+                        synchronized (activeRequests) {
+                            // A new download may have taken over the id in the meantime.
+                            if (activeRequests.get(objectId) == context) {
+                                activeRequests.remove(objectId);
+                            }
+                        }
                     }
-                    context.sendPluginResult(result);
                 }
             }
         });
     }
 
+    /**
+     * Attaches a new page to a persistent download: sends its result if it finished, or its
+     * further progress and result if it is still running. A download that was interrupted by
+     * the death of the process is started again.
+     */
+    private void reattach(String objectId, CallbackContext callbackContext) throws JSONException {
+        RequestContext context;
+        synchronized (activeRequests) {
+            context = activeRequests.get(objectId);
+        }
+        if (context != null && context.persistentId != null && context.attach(callbackContext)) {
+            return;
+        }
+        PluginResult result = journal.takeResult(objectId);
+        if (result != null) {
+            callbackContext.sendPluginResult(result);
+            return;
+        }
+        JSONArray args = journal.getPendingArgs(objectId);
+        if (args != null && context == null) {
+            Log.d(LOG_TAG, "Restarting interrupted download " + objectId);
+            // download() records it again once it is queued.
+            journal.remove(objectId);
+            download(args.getString(0), args.getString(1), args, callbackContext);
+            return;
+        }
+        JSONObject error = createFileTransferError(FILE_NOT_FOUND_ERR, null, null, null, -1, null);
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, error));
+    }
+
+    /**
+     * Downloads the source as parallel byte ranges, if the server supports ranges and the file
+     * is large enough to be split.
+     *
+     * @return false if the file should be downloaded in a single stream instead
+     */
+    private boolean downloadInSegments(final RequestContext context, final Uri sourceUri, final boolean useHttps,
+                                       final boolean trustEveryone, final JSONObject headers, File file, int segments,
+                                       FileProgressResult progress, final ProgressReporter progressReporter) throws IOException {
+        // The segments are extra connections to the host, so they count against FileTransferMaxPerHost.
+        String host = sourceUri.getHost();
+        int extraConnections = scheduler.reserveConnections(host, Math.min(segments, SegmentedDownload.MAX_SEGMENTS) - 1);
+        if (extraConnections == 0) {
+            return false;
+        }
+        try {
+            final CordovaResourceApi resourceApi = webView.getResourceApi();
+            SegmentedDownload download = new SegmentedDownload(new SegmentedDownload.ConnectionFactory() {
+                public HttpURLConnection createConnection() throws IOException {
+                    HttpURLConnection connection = resourceApi.createHttpConnection(sourceUri);
+                    if (useHttps && trustEveryone) {
+                        HttpsURLConnection https = (HttpsURLConnection)connection;
+                        trustAllHosts(https);
+                        https.setHostnameVerifier(DO_NOT_VERIFY);
+                    }
+                    connection.setRequestMethod("GET");
+                    String cookie = getCookies(sourceUri.toString());
+                    if (cookie != null) {
+                        connection.setRequestProperty("cookie", cookie);
+                    }
+                    // Byte ranges refer to the encoded body, so ask for the identity encoding.
+                    connection.setRequestProperty("Accept-Encoding", "identity");
+                    if (headers != null) {
+                        addHeadersToRequest(connection, headers);
+                    }
+                    return connection;
+                }
+            }, file, extraConnections + 1);
+
+            synchronized (context) {
+                if (context.aborted) {
+                    return false;
+                }
+                context.segmentedDownload = download;
+            }
+            if (!download.probe()) {
+                return false;
+            }
+
+            progress.setLengthComputable(true);
+            progress.setTotal(download.getTotalLength());
+            download.download(progressReporter);
+            try {
+                progressReporter.flush();
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage(), e);
+            }
+            return true;
+        } finally {
+            scheduler.releaseConnections(host, extraConnections);
+        }
+    }
+
+    /*
+     * Called after a failed attempt. Returns true if the transfer was queued again, either
+     * because it was stopped by pause() or because it has retries left, in which case the
+     * failure must not be reported.
+     */
+    private static boolean requeueOrRetry(String objectId, RequestContext context) {
+        synchronized (context) {
+            if (context.aborted) {
+                return false;
+            }
+            if (context.paused) {
+                scheduler.requeue(objectId);
+                return true;
+            }
+        }
+        return scheduler.requestRetry(objectId);
+    }
+
+    /**
+     * Holds back a queued transfer, or stops a running one and queues it again. Downloads made
+     * with the "resume" option continue where they stopped, other transfers start over.
+     */
+    private boolean pause(String objectId) {
+        final RequestContext context;
+        synchronized (activeRequests) {
+            context = activeRequests.get(objectId);
+        }
+        if (context == null) {
+            return false;
+        }
+        synchronized (context) {
+            context.paused = true;
+        }
+        if (!scheduler.pause(objectId)) {
+            // Closing the streams can block, so execute on a background thread.
+            cordova.getThreadPool().execute(new Runnable() {
+                public void run() {
+                    synchronized (context) {
+                        if (context.segmentedDownload != null) {
+                            context.segmentedDownload.cancel();
+                        }
+                        if (context.connection != null) {
+                            try {
+                                context.connection.disconnect();
+                            } catch (Exception e) {
+                                Log.e(LOG_TAG, "CB-8431 Catch workaround for fatal exception", e);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    private boolean resume(String objectId) {
+        RequestContext context;
+        synchronized (activeRequests) {
+            context = activeRequests.get(objectId);
+        }
+        if (context == null) {
+            return false;
+        }
+        synchronized (context) {
+            context.paused = false;
+        }
+        return scheduler.resume(objectId);
+    }
+
     /**
      * Abort an ongoing upload or download.
      */
@@ -996,14 +1461,27 @@ public class FileTransfer extends CordovaPlugin {
         synchronized (activeRequests) {
             context = activeRequests.remove(objectId);
         }
+        scheduler.cancel(objectId);
+        if (journal != null) {
+            journal.remove(objectId);
+        }
         if (context != null) {
             // Closing the streams can block, so execute on a background thread.
             cordova.getThreadPool().execute(new Runnable() {
                 public void run() {
                     synchronized (context) {
-                        File file = context.targetFile;
-                        if (file != null) {
-                            file.delete();
+                        // The target itself is only deleted if the download was writing to it.
+                        if (context.tempFile != null) {
+                            context.tempFile.delete();
+                        }
+                        if (context.targetFile != null) {
+                            context.targetFile.delete();
+                        }
+                        if (context.partialDownload != null) {
+                            context.partialDownload.discard();
+                        }
+                        if (context.segmentedDownload != null) {
+                            context.segmentedDownload.cancel();
                         }
                         // Trigger the abort callback immediately to minimize latency between it and abort() being called.
                         JSONObject error = createFileTransferError(ABORTED_ERR, context.source, context.target, null, -1, null);
@@ -0,0 +1,114 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.filetransfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+import org.json.JSONObject;
+
+/**
+ * Verifies a download against the digests given in its "sha256" and "md5" options.
+ *
+ * The digests are updated with each chunk as it is written, so verifying costs no extra pass
+ * over the file.
+ */
+class IntegrityCheck {
+    private final ArrayList<MessageDigest> digests = new ArrayList<MessageDigest>();
+    private final ArrayList<String> expected = new ArrayList<String>();
+
+    /**
+     * Returns the check requested by the options, or null if there is nothing to check.
+     */
+    static IntegrityCheck fromOptions(JSONObject options) throws NoSuchAlgorithmException {
+        IntegrityCheck check = new IntegrityCheck();
+        check.expect("SHA-256", options.optString("sha256", null));
+        check.expect("MD5", options.optString("md5", null));
+        return check.digests.isEmpty() ? null : check;
+    }
+
+    private void expect(String algorithm, String hex) throws NoSuchAlgorithmException {
+        if (hex != null && hex.length() > 0) {
+            digests.add(MessageDigest.getInstance(algorithm));
+            expected.add(hex.toLowerCase());
+        }
+    }
+
+    void update(byte[] buffer, int offset, int length) {
+        for (MessageDigest digest : digests) {
+            digest.update(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Adds the first length bytes of a file, e.g. the part of a resumed download that was
+     * received by an earlier attempt.
+     */
+    void update(File file, long length, byte[] buffer) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            long remaining = length;
+            int bytesRead;
+            while (remaining > 0 && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                update(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+            if (remaining > 0) {
+                throw new IOException("Expected " + length + " bytes in " + file);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns true if a file with the given SHA-256 is known to pass, without reading it.
+     */
+    boolean isSatisfiedBy(String sha256) {
+        return digests.size() == 1 && digests.get(0).getAlgorithm().equals("SHA-256")
+                && expected.get(0).equals(sha256);
+    }
+
+    /**
+     * @throws IntegrityException if a digest of the data doesn't match the expected one
+     */
+    void verify() throws IntegrityException {
+        for (int i = 0; i < digests.size(); i++) {
+            MessageDigest digest = digests.get(i);
+            String actual = toHex(digest.digest());
+            if (!actual.equals(expected.get(i))) {
+                throw new IntegrityException(digest.getAlgorithm() + " mismatch: expected " + expected.get(i) + ", got " + actual);
+            }
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
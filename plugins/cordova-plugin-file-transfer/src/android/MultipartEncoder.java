@@ -0,0 +1,199 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.filetransfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+import org.apache.cordova.CordovaResourceApi.OpenForReadResult;
+
+/**
+ * Streams a request body made of form fields and files, either as multipart/form-data or, for a
+ * single file without fields, as the raw file contents.
+ *
+ * The text around the files is encoded up front, so the length of the body is known before
+ * anything is sent as long as the length of every file is. Files are copied to the request with
+ * FileChannel.transferTo when they are local, and through the caller's buffer otherwise.
+ */
+class MultipartEncoder {
+    private static final String LINE_START = "--";
+    private static final String LINE_END = "\r\n";
+    // Files are handed to transferTo in chunks of this size, so progress is still reported.
+    private static final long TRANSFER_CHUNK_SIZE = 256 * 1024;
+
+    private final String boundary;
+    private final boolean multipart;
+    // Encoded text and OpenForReadResults, in the order they are sent
+    private final ArrayList<Object> parts = new ArrayList<Object>();
+    private final ByteArrayOutputStream pendingText = new ByteArrayOutputStream();
+    private int fileCount;
+
+    MultipartEncoder(String boundary, boolean multipart) {
+        this.boundary = boundary;
+        this.multipart = multipart;
+    }
+
+    boolean isMultipart() {
+        return multipart;
+    }
+
+    void addField(String name, String value) throws IOException {
+        if (!multipart) {
+            return;
+        }
+        appendText(LINE_START + boundary + LINE_END
+                + "Content-Disposition: form-data; name=\"" + name + '"' + LINE_END + LINE_END
+                + value + LINE_END);
+    }
+
+    /**
+     * Adds a file. Without multipart, only the first file is sent and further ones are closed.
+     */
+    void addFile(String fieldName, String fileName, String mimeType, OpenForReadResult source) throws IOException {
+        if (!multipart && fileCount > 0) {
+            source.inputStream.close();
+            return;
+        }
+        if (multipart) {
+            appendText((fileCount > 0 ? LINE_END : "") + LINE_START + boundary + LINE_END
+                    + "Content-Disposition: form-data; name=\"" + fieldName + "\"; filename=\"" + fileName + '"' + LINE_END
+                    + "Content-Type: " + mimeType + LINE_END + LINE_END);
+        }
+        flushText();
+        parts.add(source);
+        fileCount++;
+    }
+
+    /**
+     * Adds the closing boundary. No parts may be added afterwards.
+     */
+    void finish() throws IOException {
+        if (multipart) {
+            appendText(LINE_END + LINE_START + boundary + LINE_START + LINE_END);
+        }
+        flushText();
+    }
+
+    /**
+     * Returns the length of the body, or -1 if the length of a file is unknown.
+     */
+    long getContentLength() {
+        long length = 0;
+        for (Object part : parts) {
+            if (part instanceof byte[]) {
+                length += ((byte[]) part).length;
+            } else {
+                long fileLength = ((OpenForReadResult) part).length;
+                if (fileLength < 0) {
+                    return -1;
+                }
+                length += fileLength;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the body to out.
+     *
+     * @return the number of bytes written
+     */
+    long writeTo(OutputStream out, byte[] buffer, ProgressListener listener) throws IOException {
+        WritableByteChannel outChannel = null;
+        long written = 0;
+        for (Object part : parts) {
+            if (part instanceof byte[]) {
+                byte[] text = (byte[]) part;
+                out.write(text);
+                written += text.length;
+                listener.onProgress(written);
+                continue;
+            }
+
+            OpenForReadResult file = (OpenForReadResult) part;
+            InputStream in = file.inputStream;
+            // Streams of assets and content providers may be a window into a larger file, so
+            // the channel is only used when the length of the window is known.
+            if (in instanceof FileInputStream && file.length >= 0) {
+                if (outChannel == null) {
+                    out.flush();
+                    outChannel = Channels.newChannel(out);
+                }
+                FileChannel fileChannel = ((FileInputStream) in).getChannel();
+                long position = fileChannel.position();
+                long end = position + file.length;
+                while (position < end) {
+                    long transferred = fileChannel.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, end - position), outChannel);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                    written += transferred;
+                    listener.onProgress(written);
+                }
+            } else {
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, bytesRead);
+                    written += bytesRead;
+                    listener.onProgress(written);
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Closes the files. Safe to call more than once.
+     */
+    void close() {
+        for (Object part : parts) {
+            if (part instanceof OpenForReadResult) {
+                closeQuietly(((OpenForReadResult) part).inputStream);
+            }
+        }
+    }
+
+    private void appendText(String text) throws IOException {
+        //We don't want to change encoding, we just want this to write for all Unicode.
+        pendingText.write(text.getBytes("UTF-8"));
+    }
+
+    private void flushText() {
+        if (pendingText.size() > 0) {
+            parts.add(pendingText.toByteArray());
+            pendingText.reset();
+        }
+    }
+
+    private static void closeQuietly(Closeable stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.filetransfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Remembers persistent downloads across page reloads and process restarts.
+ *
+ * Each download is recorded under its transfer id with the arguments it was started with, so it
+ * can be started again if the process died before it finished. A download that finishes while
+ * no page is listening records its result instead, until a page asks for it. Results that were
+ * never asked for are dropped after a day.
+ */
+class TransferJournal {
+    private static final String LOG_TAG = "FileTransfer";
+    private static final long RESULT_LIFETIME = 24 * 60 * 60 * 1000;
+    // Request headers that carry credentials, which are not written to the journal file.
+    private static final String[] SENSITIVE_HEADERS = { "Authorization", "Proxy-Authorization", "Cookie" };
+
+    private final File file;
+    // null until loaded from file
+    private JSONObject entries;
+
+    TransferJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Records a download that is about to start. Credential headers are left out, so a download
+     * restarted from the journal is sent without them.
+     */
+    synchronized void add(String id, JSONArray args) {
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put("args", withoutSensitiveHeaders(args));
+            getEntries().put(id, entry);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        save();
+    }
+
+    /**
+     * Returns a copy of the download arguments with credential headers removed from args[4].
+     */
+    private static JSONArray withoutSensitiveHeaders(JSONArray args) throws JSONException {
+        JSONObject headers = args.optJSONObject(4);
+        if (headers == null) {
+            return args;
+        }
+        JSONObject kept = new JSONObject();
+        for (Iterator<?> iter = headers.keys(); iter.hasNext(); ) {
+            String name = iter.next().toString();
+            if (!isSensitiveHeader(name)) {
+                kept.put(name, headers.get(name));
+            }
+        }
+        JSONArray copy = new JSONArray();
+        for (int i = 0; i < args.length(); i++) {
+            copy.put(i, i == 4 ? kept : args.opt(i));
+        }
+        return copy;
+    }
+
+    private static boolean isSensitiveHeader(String name) {
+        for (String sensitive : SENSITIVE_HEADERS) {
+            if (sensitive.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the arguments of a download that didn't finish, or null.
+     */
+    synchronized JSONArray getPendingArgs(String id) {
+        JSONObject entry = getEntries().optJSONObject(id);
+        if (entry == null || entry.has("status")) {
+            return null;
+        }
+        return entry.optJSONArray("args");
+    }
+
+    /**
+     * Keeps the result of a download for a page that isn't listening yet.
+     */
+    synchronized void setResult(String id, PluginResult result) {
+        JSONObject entry = getEntries().optJSONObject(id);
+        if (entry == null) {
+            return;
+        }
+        try {
+            entry.put("status", result.getStatus());
+            if (result.getMessageType() == PluginResult.MESSAGE_TYPE_JSON) {
+                entry.put("message", new JSONObject(result.getMessage()));
+            }
+            entry.put("finished", System.currentTimeMillis());
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Could not record the result of transfer " + id, e);
+            entries.remove(id);
+        }
+        save();
+    }
+
+    /**
+     * Removes a finished download and returns its result, or null if it has none yet.
+     */
+    synchronized PluginResult takeResult(String id) {
+        JSONObject entry = getEntries().optJSONObject(id);
+        if (entry == null || !entry.has("status")) {
+            return null;
+        }
+        entries.remove(id);
+        save();
+        PluginResult.Status status = PluginResult.Status.values()[entry.optInt("status")];
+        JSONObject message = entry.optJSONObject("message");
+        return message != null ? new PluginResult(status, message) : new PluginResult(status);
+    }
+
+    synchronized void remove(String id) {
+        if (getEntries().remove(id) != null) {
+            save();
+        }
+    }
+
+    synchronized boolean contains(String id) {
+        return getEntries().has(id);
+    }
+
+    private JSONObject getEntries() {
+        if (entries == null) {
+            entries = load();
+        }
+        return entries;
+    }
+
+    private JSONObject load() {
+        if (!file.exists()) {
+            return new JSONObject();
+        }
+        try {
+            JSONObject loaded = new JSONObject(readFully(file));
+            long now = System.currentTimeMillis();
+            for (Iterator<?> iter = loaded.keys(); iter.hasNext(); ) {
+                JSONObject entry = loaded.optJSONObject(iter.next().toString());
+                if (entry == null || (entry.has("finished") && now - entry.optLong("finished") > RESULT_LIFETIME)) {
+                    iter.remove();
+                }
+            }
+            return loaded;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read the transfer journal", e);
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Could not read the transfer journal", e);
+        }
+        return new JSONObject();
+    }
+
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                os.write(entries.toString().getBytes("UTF-8"));
+            } finally {
+                os.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not write the transfer journal", e);
+            tmp.delete();
+        }
+    }
+
+    private static String readFully(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) > 0) {
+                os.write(buffer, 0, bytesRead);
+            }
+            return os.toString("UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+}
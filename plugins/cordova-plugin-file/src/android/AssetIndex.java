@@ -0,0 +1,194 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.file;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Read-only view of the cdvasset.index file written by build-extras.gradle.
+ *
+ * Layout (big-endian):
+ *   header:   int magic, int version, int entryCount, int childCount, int poolSize
+ *   entries:  entryCount x { int pathOffset, int pathLength, long size, int childStart, int childCount }
+ *   children: childCount x int entryIndex
+ *   pool:     UTF-8 path bytes
+ *
+ * Entries are sorted by the unsigned bytes of their UTF-8 path, so lookups are a binary search.
+ * Directories have a size of -1 and own a contiguous range of the children table, sorted by name.
+ * The buffer is only ever read with absolute gets, so a single instance can be shared between
+ * threads without locking.
+ */
+public class AssetIndex {
+
+    public static final String ASSET_NAME = "cdvasset.index";
+
+    private static final int MAGIC = 0x43445649; // "CDVI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int ENTRY_SIZE = 24;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final int childrenStart;
+    private final int poolStart;
+
+    private AssetIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unrecognized asset index");
+        }
+        entryCount = buffer.getInt(8);
+        int childCount = buffer.getInt(12);
+        int poolSize = buffer.getInt(16);
+        childrenStart = HEADER_SIZE + entryCount * ENTRY_SIZE;
+        poolStart = childrenStart + childCount * 4;
+        if (poolStart + poolSize > buffer.capacity()) {
+            throw new IOException("Truncated asset index");
+        }
+    }
+
+    /**
+     * Opens the index from the APK. The index is memory-mapped when aapt stored it uncompressed,
+     * and read onto the heap otherwise.
+     *
+     * @throws FileNotFoundException if the gradle hook did not generate an index
+     */
+    public static AssetIndex open(AssetManager assetManager) throws IOException {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = assetManager.openFd(ASSET_NAME);
+        } catch (FileNotFoundException e) {
+            // Either missing or compressed. Compressed assets can only be streamed.
+        }
+        if (afd != null) {
+            FileInputStream fis = afd.createInputStream();
+            try {
+                FileChannel channel = fis.getChannel();
+                return new AssetIndex(channel.map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength()));
+            } finally {
+                fis.close();
+                afd.close();
+            }
+        }
+
+        InputStream is = assetManager.open(ASSET_NAME);
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = is.read(chunk)) > 0) {
+                os.write(chunk, 0, bytesRead);
+            }
+            return new AssetIndex(ByteBuffer.wrap(os.toByteArray()));
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Returns the entry index of the given asset path (no leading or trailing slash, "" for the
+     * root), or -1 if it does not exist.
+     */
+    public int find(String assetPath) {
+        byte[] key = assetPath.getBytes(UTF8);
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareEntryTo(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isDirectory(int entry) {
+        return buffer.getLong(entryOffset(entry) + 8) < 0;
+    }
+
+    public long getSize(int entry) {
+        return buffer.getLong(entryOffset(entry) + 8);
+    }
+
+    /**
+     * Returns the names (not paths) of the direct children of the given entry, in sorted order.
+     */
+    public String[] listChildren(int entry) {
+        int offset = entryOffset(entry);
+        int childStart = buffer.getInt(offset + 16);
+        int childCount = buffer.getInt(offset + 20);
+        String[] names = new String[childCount];
+        for (int i = 0; i < childCount; ++i) {
+            names[i] = nameOf(buffer.getInt(childrenStart + (childStart + i) * 4));
+        }
+        return names;
+    }
+
+    private int entryOffset(int entry) {
+        return HEADER_SIZE + entry * ENTRY_SIZE;
+    }
+
+    private int compareEntryTo(int entry, byte[] key) {
+        int offset = entryOffset(entry);
+        int pathStart = poolStart + buffer.getInt(offset);
+        int pathLength = buffer.getInt(offset + 4);
+        int n = Math.min(pathLength, key.length);
+        for (int i = 0; i < n; ++i) {
+            int diff = (buffer.get(pathStart + i) & 0xff) - (key[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return pathLength - key.length;
+    }
+
+    private String nameOf(int entry) {
+        int offset = entryOffset(entry);
+        int pathStart = poolStart + buffer.getInt(offset);
+        int pathLength = buffer.getInt(offset + 4);
+        int nameStart = pathStart;
+        for (int i = pathStart + pathLength - 1; i >= pathStart; --i) {
+            if (buffer.get(i) == '/') {
+                nameStart = i + 1;
+                break;
+            }
+        }
+        byte[] bytes = new byte[pathStart + pathLength - nameStart];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = buffer.get(nameStart + i);
+        }
+        return new String(bytes, UTF8);
+    }
+}
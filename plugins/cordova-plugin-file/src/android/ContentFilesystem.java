@@ -20,22 +20,51 @@ package org.apache.cordova.file;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.BaseColumns;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
+import android.util.LruCache;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.apache.cordova.CordovaResourceApi;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 public class ContentFilesystem extends Filesystem {
 
+    private static final int METADATA_CACHE_SIZE = 256;
+    // Keeps IN (...) clauses well below SQLite's default limit of 999 host parameters.
+    private static final int MAX_IDS_PER_QUERY = 500;
+
     private final Context context;
 
+    // Metadata lookups are keyed by native content:// URI and dropped whenever the owning
+    // provider reports a change through a ContentObserver.
+    private final LruCache<String, CachedMetadata> metadataCache = new LruCache<String, CachedMetadata>(METADATA_CACHE_SIZE);
+    private final HashMap<String, ContentObserver> observers = new HashMap<String, ContentObserver>();
+
+    private static class CachedMetadata {
+        final long size;
+        final long lastModified;
+        final String mimeType;
+
+        CachedMetadata(long size, long lastModified, String mimeType) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mimeType = mimeType;
+        }
+    }
+
 	public ContentFilesystem(Context context, CordovaResourceApi resourceApi) {
 		super(Uri.parse("content://"), "content", resourceApi);
         this.context = context;
@@ -94,6 +123,7 @@ public class ContentFilesystem extends Filesystem {
         Uri contentUri = toNativeUri(inputURL);
 		try {
             context.getContentResolver().delete(contentUri, null, null);
+            metadataCache.remove(contentUri.toString());
 		} catch (UnsupportedOperationException t) {
 			// Was seeing this on the File mobile-spec tests on 4.0.3 x86 emulator.
 			// The ContentResolver applies only when the file was registered in the
@@ -116,14 +146,129 @@ public class ContentFilesystem extends Filesystem {
 
 	@Override
 	public JSONObject getFileMetadataForLocalURL(LocalFilesystemURL inputURL) throws FileNotFoundException {
+        Uri nativeUri = toNativeUri(inputURL);
+        CachedMetadata metadata = metadataCache.get(nativeUri.toString());
+        if (metadata == null) {
+            metadata = queryMetadata(nativeUri);
+            cacheMetadata(nativeUri, metadata);
+        }
+        return makeMetadata(inputURL, metadata);
+	}
+
+    /**
+     * Looks up the metadata of many content URLs at once. URLs of the form
+     * content://authority/some/table/{id} are grouped by table and resolved with a single
+     * "_id IN (...)" query per table; everything else is resolved one by one.
+     *
+     * @return an array parallel to inputURLs, holding null for entries that could not be found
+     */
+    public JSONArray getFileMetadataForLocalURLs(List<LocalFilesystemURL> inputURLs) {
+        int count = inputURLs.size();
+        CachedMetadata[] results = new CachedMetadata[count];
+        Uri[] nativeUris = new Uri[count];
+        HashMap<Uri, List<Integer>> byTable = new HashMap<Uri, List<Integer>>();
+
+        for (int i = 0; i < count; ++i) {
+            Uri nativeUri = toNativeUri(inputURLs.get(i));
+            nativeUris[i] = nativeUri;
+            if (nativeUri == null) {
+                continue;
+            }
+            results[i] = metadataCache.get(nativeUri.toString());
+            if (results[i] == null && nativeUri.getQuery() == null && rowIdForUri(nativeUri) != null) {
+                Uri table = tableUriForRowUri(nativeUri);
+                List<Integer> indices = byTable.get(table);
+                if (indices == null) {
+                    indices = new ArrayList<Integer>();
+                    byTable.put(table, indices);
+                }
+                indices.add(i);
+            }
+        }
+
+        for (Map.Entry<Uri, List<Integer>> table : byTable.entrySet()) {
+            List<Integer> indices = table.getValue();
+            for (int start = 0; start < indices.size(); start += MAX_IDS_PER_QUERY) {
+                queryMetadataBatch(table.getKey(), indices.subList(start, Math.min(start + MAX_IDS_PER_QUERY, indices.size())),
+                        nativeUris, results);
+            }
+        }
+
+        JSONArray ret = new JSONArray();
+        for (int i = 0; i < count; ++i) {
+            if (results[i] == null && nativeUris[i] != null) {
+                // Not batchable, or the provider didn't return a row for it.
+                try {
+                    results[i] = queryMetadata(nativeUris[i]);
+                    cacheMetadata(nativeUris[i], results[i]);
+                } catch (FileNotFoundException e) {
+                    // Leave it null.
+                }
+            }
+            ret.put(results[i] == null ? JSONObject.NULL : makeMetadata(inputURLs.get(i), results[i]));
+        }
+        return ret;
+    }
+
+    private void queryMetadataBatch(Uri table, List<Integer> indices, Uri[] nativeUris, CachedMetadata[] results) {
+        HashMap<String, Integer> indexById = new HashMap<String, Integer>();
+        String[] selectionArgs = new String[indices.size()];
+        StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (");
+        for (int i = 0; i < selectionArgs.length; ++i) {
+            int index = indices.get(i);
+            selectionArgs[i] = rowIdForUri(nativeUris[index]);
+            indexById.put(selectionArgs[i], index);
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+
+        Cursor cursor;
+        try {
+            cursor = context.getContentResolver().query(table, null, selection.toString(), selectionArgs, null);
+        } catch (RuntimeException e) {
+            // Not every provider supports selections (or has an _id column). Those URLs are
+            // resolved individually by the caller.
+            return;
+        }
+        if (cursor == null) {
+            return;
+        }
+        try {
+            int idColumn = cursor.getColumnIndex(BaseColumns._ID);
+            int mimeTypeColumn = cursor.getColumnIndex(MediaStore.MediaColumns.MIME_TYPE);
+            if (idColumn == -1) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                Integer index = indexById.get(cursor.getString(idColumn));
+                if (index == null) {
+                    continue;
+                }
+                Uri nativeUri = nativeUris[index];
+                Long size = resourceSizeForCursor(cursor);
+                Long modified = lastModifiedDateForCursor(cursor);
+                String mimeType = mimeTypeColumn == -1 ? null : cursor.getString(mimeTypeColumn);
+                if (mimeType == null) {
+                    mimeType = resourceApi.getMimeType(nativeUri);
+                }
+                results[index] = new CachedMetadata(size == null ? -1 : size, modified == null ? 0 : modified, mimeType);
+                cacheMetadata(nativeUri, results[index]);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private CachedMetadata queryMetadata(Uri nativeUri) throws FileNotFoundException {
         long size = -1;
         long lastModified = 0;
-        Uri nativeUri = toNativeUri(inputURL);
         String mimeType = resourceApi.getMimeType(nativeUri);
         Cursor cursor = openCursorForURL(nativeUri);
         try {
         	if (cursor != null && cursor.moveToFirst()) {
-        		size = resourceSizeForCursor(cursor);
+        		Long cursorSize = resourceSizeForCursor(cursor);
+        		if (cursorSize != null)
+        		    size = cursorSize.longValue();
                 Long modified = lastModifiedDateForCursor(cursor);
                 if (modified != null)
                     lastModified = modified.longValue();
@@ -131,6 +276,7 @@ public class ContentFilesystem extends Filesystem {
                 // Some content providers don't support cursors at all!
                 CordovaResourceApi.OpenForReadResult offr = resourceApi.openForRead(nativeUri);
     			size = offr.length;
+                offr.inputStream.close();
         	}
         } catch (IOException e) {
             throw new FileNotFoundException();
@@ -138,19 +284,104 @@ public class ContentFilesystem extends Filesystem {
         	if (cursor != null)
         		cursor.close();
         }
+        return new CachedMetadata(size, lastModified, mimeType);
+    }
 
+    private JSONObject makeMetadata(LocalFilesystemURL inputURL, CachedMetadata cached) {
         JSONObject metadata = new JSONObject();
         try {
-        	metadata.put("size", size);
-        	metadata.put("type", mimeType);
+        	metadata.put("size", cached.size);
+        	metadata.put("type", cached.mimeType);
         	metadata.put("name", name);
         	metadata.put("fullPath", inputURL.path);
-        	metadata.put("lastModifiedDate", lastModified);
+        	metadata.put("lastModifiedDate", cached.lastModified);
         } catch (JSONException e) {
         	return null;
         }
         return metadata;
-	}
+    }
+
+    private void cacheMetadata(Uri nativeUri, CachedMetadata metadata) {
+        if (watchAuthority(nativeUri.getAuthority())) {
+            metadataCache.put(nativeUri.toString(), metadata);
+        }
+    }
+
+    private static String rowIdForUri(Uri nativeUri) {
+        String lastSegment = nativeUri.getLastPathSegment();
+        if (lastSegment == null || lastSegment.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < lastSegment.length(); ++i) {
+            if (!Character.isDigit(lastSegment.charAt(i))) {
+                return null;
+            }
+        }
+        return lastSegment;
+    }
+
+    private static Uri tableUriForRowUri(Uri nativeUri) {
+        List<String> segments = nativeUri.getPathSegments();
+        Uri.Builder b = new Uri.Builder().scheme(nativeUri.getScheme()).encodedAuthority(nativeUri.getEncodedAuthority());
+        for (int i = 0; i < segments.size() - 1; ++i) {
+            b.appendPath(segments.get(i));
+        }
+        return b.build();
+    }
+
+    private boolean watchAuthority(final String authority) {
+        if (authority == null) {
+            return false;
+        }
+        synchronized (observers) {
+            if (observers.containsKey(authority)) {
+                return true;
+            }
+            // A null handler delivers change notifications directly on the binder thread, which
+            // is fine since the cache is thread-safe.
+            ContentObserver observer = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onChange(selfChange, null);
+                }
+
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    invalidateMetadata(uri != null ? uri.toString() : "content://" + authority);
+                }
+            };
+            try {
+                context.getContentResolver().registerContentObserver(Uri.parse("content://" + authority), true, observer);
+            } catch (SecurityException e) {
+                // Can't be notified about this provider; don't cache what we can't invalidate.
+                return false;
+            }
+            observers.put(authority, observer);
+            return true;
+        }
+    }
+
+    private void invalidateMetadata(String uriPrefix) {
+        for (String key : metadataCache.snapshot().keySet()) {
+            if (key.startsWith(uriPrefix)) {
+                metadataCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Stops listening for provider changes and drops all cached metadata.
+     */
+    public void unregisterObservers() {
+        synchronized (observers) {
+            ContentResolver contentResolver = context.getContentResolver();
+            for (ContentObserver observer : observers.values()) {
+                contentResolver.unregisterContentObserver(observer);
+            }
+            observers.clear();
+        }
+        metadataCache.evictAll();
+    }
 
 	@Override
 	public long writeToFileAtURL(LocalFilesystemURL inputURL, String data,
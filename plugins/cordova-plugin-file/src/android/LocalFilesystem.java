@@ -28,6 +28,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import org.apache.cordova.CordovaResourceApi;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -41,10 +42,16 @@ import android.content.Intent;
 
 public class LocalFilesystem extends Filesystem {
     private final Context context;
+    private final StorageUsage usage;
 
     public LocalFilesystem(String name, Context context, CordovaResourceApi resourceApi, File fsRoot) {
         super(Uri.fromFile(fsRoot).buildUpon().appendEncodedPath("").build(), name, resourceApi);
         this.context = context;
+        this.usage = StorageUsage.forRoot(rootUri.getPath(), context);
+    }
+
+    public StorageUsage getUsage() {
+        return usage;
     }
 
     public String filesystemPathForFullPath(String fullPath) {
@@ -179,7 +186,12 @@ public class LocalFilesystem extends Filesystem {
             throw new InvalidModificationException("You can't delete a directory that is not empty.");
         }
 
-        return fp.delete();
+        long size = fp.isDirectory() ? 0 : fp.length();
+        if (!fp.delete()) {
+            return false;
+        }
+        StorageUsage.adjust(fp.getAbsolutePath(), -size);
+        return true;
 	}
 
     @Override
@@ -188,9 +200,13 @@ public class LocalFilesystem extends Filesystem {
         return fp.exists();
     }
 
+    /**
+     * Returns the free space, capped by the remaining quota if one is set. The free space is
+     * sampled periodically and kept up to date with the plugin's own writes in between.
+     */
     @Override
     public long getFreeSpaceInBytes() {
-        return DirectoryManager.getFreeSpaceInBytes(rootUri.getPath());
+        return usage.getAvailableBytes();
     }
 
     @Override
@@ -206,9 +222,11 @@ public class LocalFilesystem extends Filesystem {
             }
         }
 
+        long size = directory.isDirectory() ? 0 : directory.length();
         if (!directory.delete()) {
             throw new FileExistsException("could not delete: " + directory.getName());
         } else {
+            StorageUsage.adjust(directory.getAbsolutePath(), -size);
             return true;
         }
 	}
@@ -227,12 +245,17 @@ public class LocalFilesystem extends Filesystem {
             // inputURL is a directory
             return null;
         }
-        LocalFilesystemURL[] entries = new LocalFilesystemURL[files.length];
-        for (int i = 0; i < files.length; i++) {
-            entries[i] = URLforFilesystemPath(files[i].getPath());
+        ArrayList<LocalFilesystemURL> entries = new ArrayList<LocalFilesystemURL>(files.length);
+        for (File file : files) {
+            // Removals staged by a batch are gone as far as the app is concerned.
+            if (BatchTransaction.isStaged(file.getName())) {
+                BatchTransaction.sweep(file);
+                continue;
+            }
+            entries.add(URLforFilesystemPath(file.getPath()));
         }
 
-        return entries;
+        return entries.toArray(new LocalFilesystemURL[entries.size()]);
 	}
 
 	@Override
@@ -262,7 +285,11 @@ public class LocalFilesystem extends Filesystem {
             String realSrcPath = srcFs.filesystemPathForURL(srcURL);
             if (realSrcPath != null) {
                 File srcFile = new File(realSrcPath);
+                long size = srcFile.length();
+                long replacedSize = destFile.length();
                 if (srcFile.renameTo(destFile)) {
+                    StorageUsage.adjust(srcFile.getAbsolutePath(), -size);
+                    StorageUsage.adjust(destFile.getAbsolutePath(), size - replacedSize);
                     return;
                 }
                 // Trying to rename the file failed.  Possibly because we moved across file system on the device.
@@ -270,7 +297,17 @@ public class LocalFilesystem extends Filesystem {
         }
 
         CordovaResourceApi.OpenForReadResult offr = resourceApi.openForRead(srcFs.toNativeUri(srcURL));
+        long replacedSize = destFile.length();
+        if (offr.length >= 0) {
+            try {
+                StorageUsage.checkQuota(destFile.getAbsolutePath(), offr.length - replacedSize);
+            } catch (QuotaExceededException e) {
+                offr.inputStream.close();
+                throw e;
+            }
+        }
         copyResource(offr, new FileOutputStream(destFile));
+        StorageUsage.adjust(destFile.getAbsolutePath(), destFile.length() - replacedSize);
 
         if (move) {
             srcFs.removeFileAtLocalURL(srcURL);
@@ -290,7 +327,10 @@ public class LocalFilesystem extends Filesystem {
                     dstDir.delete();
                 }
                 // Try to rename the directory
+                long size = StorageUsage.sizeOf(srcDir);
                 if (srcDir.renameTo(dstDir)) {
+                    StorageUsage.adjust(srcDir.getAbsolutePath(), -size);
+                    StorageUsage.adjust(dstDir.getAbsolutePath(), size);
                     return;
                 }
                 // Trying to rename the file failed.  Possibly because we moved across file system on the device.
@@ -391,6 +431,9 @@ public class LocalFilesystem extends Filesystem {
         {
         	byte buff[] = new byte[rawData.length];
             String absolutePath = filesystemPathForURL(inputURL);
+            long previousSize = new File(absolutePath).length();
+            long delta = append ? rawData.length : rawData.length - previousSize;
+            StorageUsage.checkQuota(absolutePath, delta);
             FileOutputStream out = new FileOutputStream(absolutePath, append);
             try {
             	in.read(buff, 0, buff.length);
@@ -399,6 +442,7 @@ public class LocalFilesystem extends Filesystem {
             } finally {
             	// Always close the output
             	out.close();
+            	StorageUsage.adjust(absolutePath, new File(absolutePath).length() - previousSize);
             }
             if (isPublicDirectory(absolutePath)) {
                 broadcastNewFile(Uri.fromFile(new File(absolutePath)));
@@ -447,9 +491,11 @@ public class LocalFilesystem extends Filesystem {
 
         RandomAccessFile raf = new RandomAccessFile(filesystemPathForURL(inputURL), "rw");
         try {
-            if (raf.length() >= size) {
+            long length = raf.length();
+            if (length >= size) {
                 FileChannel channel = raf.getChannel();
                 channel.truncate(size);
+                StorageUsage.adjust(file.getAbsolutePath(), size - length);
                 return size;
             }
 
@@ -0,0 +1,226 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+ */
+package org.apache.cordova.file;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Keeps track of the bytes stored below a LocalFilesystem root, so that quota checks and
+ * requestFileSystem(size) don't have to walk the directory tree or call StatFs every time.
+ *
+ * The used size is computed by a single walk the first time it is needed, and from then on
+ * adjusted by every write and removal that goes through LocalFilesystem. Roots may be nested
+ * (e.g. "files" and "persistent"), so each change is applied to every tracker above the path.
+ * Changes made behind the plugin's back are picked up the next time the app starts.
+ *
+ * Quotas are kept in shared preferences, so they survive restarts. The device root is not
+ * tracked at all, as measuring it would mean walking the whole device.
+ */
+class StorageUsage {
+    // How long a StatFs sample of the free space is trusted, in milliseconds
+    private static final long FREE_SPACE_SAMPLE_INTERVAL = 10000;
+    private static final String QUOTA_PREFERENCES = "cdv-file-quotas";
+
+    private static final ArrayList<StorageUsage> trackers = new ArrayList<StorageUsage>();
+
+    private final String rootPath;
+    private final SharedPreferences quotas;
+    // -1 until the first walk of the root
+    private long usedBytes = -1;
+    // -1 when no quota is set
+    private long quotaBytes = -1;
+    private long freeBytes;
+    private long freeBytesSampledAt = -1;
+
+    private StorageUsage(String rootPath, SharedPreferences quotas) {
+        this.rootPath = rootPath;
+        this.quotas = quotas;
+        if (isTracked()) {
+            this.quotaBytes = quotas.getLong(rootPath, -1);
+        }
+    }
+
+    /**
+     * Returns the tracker of the given root directory, shared by all filesystems using that root.
+     */
+    public static StorageUsage forRoot(String rootPath, Context context) {
+        if (!rootPath.endsWith("/")) {
+            rootPath += "/";
+        }
+        synchronized (trackers) {
+            for (StorageUsage usage : trackers) {
+                if (usage.rootPath.equals(rootPath)) {
+                    return usage;
+                }
+            }
+            StorageUsage usage = new StorageUsage(rootPath,
+                    context.getSharedPreferences(QUOTA_PREFERENCES, Context.MODE_PRIVATE));
+            trackers.add(usage);
+            return usage;
+        }
+    }
+
+    /**
+     * Records that the entry at absolutePath grew (or shrank, for negative values) by delta bytes.
+     */
+    public static void adjust(String absolutePath, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        for (StorageUsage usage : trackersContaining(absolutePath)) {
+            usage.adjust(delta);
+        }
+    }
+
+    /**
+     * Throws if growing the entry at absolutePath by delta bytes would exceed the quota of any
+     * filesystem containing it.
+     */
+    public static void checkQuota(String absolutePath, long delta) throws QuotaExceededException {
+        if (delta <= 0) {
+            return;
+        }
+        for (StorageUsage usage : trackersContaining(absolutePath)) {
+            usage.checkQuota(delta);
+        }
+    }
+
+    private static ArrayList<StorageUsage> trackersContaining(String absolutePath) {
+        ArrayList<StorageUsage> ret = new ArrayList<StorageUsage>();
+        synchronized (trackers) {
+            for (StorageUsage usage : trackers) {
+                if (absolutePath.startsWith(usage.rootPath)) {
+                    ret.add(usage);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private synchronized void adjust(long delta) {
+        if (usedBytes >= 0) {
+            usedBytes = Math.max(usedBytes + delta, 0);
+        }
+        if (freeBytesSampledAt >= 0) {
+            freeBytes = Math.max(freeBytes - delta, 0);
+        }
+    }
+
+    private synchronized void checkQuota(long delta) throws QuotaExceededException {
+        if (quotaBytes >= 0 && getUsedBytes() + delta > quotaBytes) {
+            throw new QuotaExceededException("Quota of " + quotaBytes + " bytes exceeded for " + rootPath);
+        }
+    }
+
+    /**
+     * Returns false for the device root, whose usage and quota can't be asked for.
+     */
+    public boolean isTracked() {
+        return !"/".equals(rootPath);
+    }
+
+    public synchronized long getUsedBytes() {
+        if (usedBytes < 0) {
+            usedBytes = sizeOf(new File(rootPath));
+        }
+        return usedBytes;
+    }
+
+    public synchronized long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    /**
+     * Sets the maximum number of bytes that may be stored below the root, or removes the quota
+     * when bytes is negative.
+     */
+    public synchronized void setQuotaBytes(long bytes) {
+        quotaBytes = bytes < 0 ? -1 : bytes;
+        if (quotaBytes >= 0) {
+            quotas.edit().putLong(rootPath, quotaBytes).apply();
+        } else {
+            quotas.edit().remove(rootPath).apply();
+        }
+        if (quotaBytes >= 0) {
+            // Make sure the following checks are O(1).
+            getUsedBytes();
+        }
+    }
+
+    public synchronized long getFreeSpaceInBytes() {
+        long now = SystemClock.elapsedRealtime();
+        if (freeBytesSampledAt < 0 || now - freeBytesSampledAt > FREE_SPACE_SAMPLE_INTERVAL) {
+            freeBytes = DirectoryManager.getFreeSpaceInBytes(rootPath);
+            freeBytesSampledAt = now;
+        }
+        return freeBytes;
+    }
+
+    /**
+     * Returns the number of bytes that can still be written below the root: the free space on
+     * the device, capped by what is left of the quota.
+     */
+    public synchronized long getAvailableBytes() {
+        long available = getFreeSpaceInBytes();
+        if (quotaBytes >= 0) {
+            available = Math.min(available, Math.max(quotaBytes - getUsedBytes(), 0));
+        }
+        return available;
+    }
+
+    /**
+     * Returns the size of a file, or the total size of the files below a directory.
+     * Symbolic links to directories are not followed.
+     */
+    public static long sizeOf(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        if (isSymlink(file)) {
+            return 0;
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
+    private static boolean isSymlink(File file) {
+        File parent = file.getParentFile();
+        if (parent == null) {
+            return false;
+        }
+        try {
+            File inCanonicalParent = new File(parent.getCanonicalFile(), file.getName());
+            return !inCanonicalParent.getCanonicalFile().equals(inCanonicalParent.getAbsoluteFile());
+        } catch (IOException e) {
+            return true;
+        }
+    }
+}
@@ -3762,6 +3762,36 @@ exports.defineManualTests = function (contentEl, createActionButton) {
         }, logError("requestFileSystem"));
     }
 
+    function benchmarkLookups(iterations) {
+        requestFileSystem(LocalFileSystem.TEMPORARY, 0, function (fileSystem) {
+            fileSystem.root.getFile("benchmark.txt", { create: true }, function () {
+                var start = Date.now();
+                var pending = iterations;
+                var failed = 0;
+                var done = function () {
+                    if (--pending === 0) {
+                        var elapsed = Date.now() - start;
+                        logMessage(iterations + " getFile + getMetadata calls in " + elapsed + " ms (" +
+                            Math.round(iterations * 1000 / Math.max(elapsed, 1)) + " ops/s)", failed ? 'red' : 'green');
+                        if (failed) {
+                            logMessage(failed + " calls failed", 'red');
+                        }
+                    }
+                };
+                var fail = function () {
+                    failed++;
+                    done();
+                };
+                logMessage("Running " + iterations + " lookups...");
+                for (var i = 0; i < iterations; i++) {
+                    fileSystem.root.getFile("benchmark.txt", { create: false }, function (entry) {
+                        entry.getMetadata(done, fail);
+                    }, fail);
+                }
+            }, logError("getFile"));
+        }, logError("requestFileSystem"));
+    }
+
     function clearLog() {
         var log = document.getElementById("info");
         log.innerHTML = "";
@@ -3823,6 +3853,11 @@ exports.defineManualTests = function (contentEl, createActionButton) {
     }
 
 
+    createActionButton("Benchmark getFile/getMetadata", function () {
+        clearLog();
+        benchmarkLookups(500);
+    }, 'button');
+
     div = document.createElement('div');
     div.setAttribute("id", "info");
     div.setAttribute("align", "center");
@@ -3839,4 +3874,9 @@ exports.defineManualTests = function (contentEl, createActionButton) {
         'should be successfully resolved. Status box should say Successfully resolved. Both blue URLs below ' +
         'that should match.'));
     contentEl.appendChild(div);
+
+    div = document.createElement('h3');
+    div.appendChild(document.createTextNode('For Benchmark getFile/getMetadata, the status box should report the ' +
+        'number of lookups completed per second, with no failed calls.'));
+    contentEl.appendChild(div);
 };
@@ -31,6 +31,7 @@ import android.os.Build;
 import org.apache.cordova.file.FileUtils;
 import org.apache.cordova.file.LocalFilesystemURL;
 
+import org.apache.cordova.ByteArrayPool;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.LOG;
@@ -45,7 +46,6 @@ import android.content.ContentValues;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.BitmapFactory;
-import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Environment;
 import android.provider.MediaStore;
@@ -74,6 +74,7 @@ public class Capture extends CordovaPlugin {
     private JSONArray results;                      // The array of results to be returned to the user
     private int numPics;                            // Number of pictures before capture activity
     private int quality;                            // Quality level for video capture 0 low, 1 high
+    private final MediaProbe mediaProbe = new MediaProbe(); // Reads and remembers audio and video formats
     //private CordovaInterface cordova;
 
 //    public void setContext(Context mCtx)
@@ -85,7 +86,41 @@ public class Capture extends CordovaPlugin {
 //    }
 
     @Override
-    public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+    public boolean execute(String action, JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        // Format queries may run while a capture is in progress, so they must not touch its state.
+        if (action.equals("getFormatData")) {
+            final String filePath = args.getString(0);
+            final String mimeType = args.getString(1);
+            cordova.getThreadPool().execute(new Runnable() {
+                public void run() {
+                    try {
+                        callbackContext.success(getFormatData(filePath, mimeType));
+                    } catch (JSONException e) {
+                        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+                    }
+                }
+            });
+            return true;
+        }
+        else if (action.equals("getFormatDataList")) {
+            final JSONArray files = args.getJSONArray(0);
+            cordova.getThreadPool().execute(new Runnable() {
+                public void run() {
+                    try {
+                        JSONArray formats = new JSONArray();
+                        for (int i = 0; i < files.length(); i++) {
+                            JSONArray file = files.getJSONArray(i);
+                            formats.put(getFormatData(file.getString(0), file.optString(1)));
+                        }
+                        callbackContext.success(formats);
+                    } catch (JSONException e) {
+                        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+                    }
+                }
+            });
+            return true;
+        }
+
         this.callbackContext = callbackContext;
         this.limit = 1;
         this.duration = 0;
@@ -99,12 +134,7 @@ public class Capture extends CordovaPlugin {
             quality = options.optInt("quality", 1);
         }
 
-        if (action.equals("getFormatData")) {
-            JSONObject obj = getFormatData(args.getString(0), args.getString(1));
-            callbackContext.success(obj);
-            return true;
-        }
-        else if (action.equals("captureAudio")) {
+        if (action.equals("captureAudio")) {
             this.captureAudio();
         }
         else if (action.equals("captureImage")) {
@@ -123,12 +153,11 @@ public class Capture extends CordovaPlugin {
     /**
      * Provides the media data file data depending on it's mime type
      *
-     * @param filePath path to the file
+     * @param filePath path or URL of the file
      * @param mimeType of the file
      * @return a MediaFileData object
      */
     private JSONObject getFormatData(String filePath, String mimeType) throws JSONException {
-        Uri fileUrl = filePath.startsWith("file:") ? Uri.parse(filePath) : Uri.fromFile(new File(filePath));
         JSONObject obj = new JSONObject();
         // setup defaults
         obj.put("height", 0);
@@ -137,6 +166,13 @@ public class Capture extends CordovaPlugin {
         obj.put("duration", 0);
         obj.put("codecs", "");
 
+        File file = resolveFile(filePath);
+        if (file == null) {
+            Log.d(LOG_TAG, "Error: no local file for " + filePath);
+            return obj;
+        }
+        Uri fileUrl = Uri.fromFile(file);
+
         // If the mimeType isn't set the rest will fail
         // so let's see if we can determine it.
         if (mimeType == null || mimeType.equals("") || "null".equals(mimeType)) {
@@ -148,14 +184,28 @@ public class Capture extends CordovaPlugin {
             obj = getImageData(fileUrl, obj);
         }
         else if (mimeType.endsWith(AUDIO_3GPP)) {
-            obj = getAudioVideoData(filePath, obj, false);
+            obj = getAudioVideoData(file, obj, false);
         }
         else if (mimeType.equals(VIDEO_3GPP) || mimeType.equals(VIDEO_MP4)) {
-            obj = getAudioVideoData(filePath, obj, true);
+            obj = getAudioVideoData(file, obj, true);
         }
         return obj;
     }
 
+    /**
+     * Maps a path, file: URL or any URL the file plugin knows (e.g. cdvfile:) to a local file.
+     *
+     * @param filePath path or URL of the file
+     * @return the file, or null if it isn't stored locally
+     */
+    private File resolveFile(String filePath) {
+        Uri uri = Uri.parse(filePath);
+        if (uri.getScheme() == null) {
+            return new File(filePath);
+        }
+        return webView.getResourceApi().mapUriToFile(uri);
+    }
+
     /**
      * Get the Image specific attributes
      *
@@ -167,33 +217,35 @@ public class Capture extends CordovaPlugin {
     private JSONObject getImageData(Uri fileUrl, JSONObject obj) throws JSONException {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
+        ByteArrayPool bytePool = ByteArrayPool.getInstance(cordova.getActivity());
+        options.inTempStorage = bytePool.get(16 * 1024);
         BitmapFactory.decodeFile(fileUrl.getPath(), options);
+        bytePool.put(options.inTempStorage);
         obj.put("height", options.outHeight);
         obj.put("width", options.outWidth);
         return obj;
     }
 
     /**
-     * Get the Image specific attributes
+     * Get the Audio and Video specific attributes
      *
-     * @param filePath path to the file
+     * @param file the media file
      * @param obj represents the Media File Data
      * @param video if true get video attributes as well
      * @return a JSONObject that represents the Media File Data
      * @throws JSONException
      */
-    private JSONObject getAudioVideoData(String filePath, JSONObject obj, boolean video) throws JSONException {
-        MediaPlayer player = new MediaPlayer();
-        try {
-            player.setDataSource(filePath);
-            player.prepare();
-            obj.put("duration", player.getDuration() / 1000);
-            if (video) {
-                obj.put("height", player.getVideoHeight());
-                obj.put("width", player.getVideoWidth());
-            }
-        } catch (IOException e) {
+    private JSONObject getAudioVideoData(File file, JSONObject obj, boolean video) throws JSONException {
+        MediaProbe.Metadata metadata = mediaProbe.probe(file);
+        if (metadata == null) {
             Log.d(LOG_TAG, "Error: loading video file");
+            return obj;
+        }
+        obj.put("duration", metadata.duration / 1000);
+        obj.put("bitrate", metadata.bitrate);
+        if (video) {
+            obj.put("height", metadata.height);
+            obj.put("width", metadata.width);
         }
         return obj;
     }
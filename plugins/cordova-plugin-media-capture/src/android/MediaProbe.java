@@ -0,0 +1,125 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+
+/**
+ * Reads the format of audio and video files from their container metadata.
+ *
+ * Unlike preparing a MediaPlayer, this doesn't set up any decoders, and the native retriever is
+ * released as soon as the metadata has been read. Results are remembered per path for as long
+ * as the file keeps its modification time and length, so asking again about the same clips is
+ * free.
+ */
+class MediaProbe {
+    private static final String LOG_TAG = "Capture";
+    private static final int MAX_ENTRIES = 64;
+
+    static final class Metadata {
+        final int width;
+        final int height;
+        final int bitrate;
+        final long duration;    // in milliseconds
+
+        Metadata(int width, int height, int bitrate, long duration) {
+            this.width = width;
+            this.height = height;
+            this.bitrate = bitrate;
+            this.duration = duration;
+        }
+    }
+
+    private static final class Entry {
+        final long modified;
+        final long length;
+        final Metadata metadata;
+
+        Entry(long modified, long length, Metadata metadata) {
+            this.modified = modified;
+            this.length = length;
+            this.metadata = metadata;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Returns the metadata of a file, or null if it can't be read.
+     */
+    Metadata probe(File file) {
+        String path = file.getAbsolutePath();
+        long modified = file.lastModified();
+        long length = file.length();
+        synchronized (entries) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.modified == modified && entry.length == length) {
+                return entry.metadata;
+            }
+        }
+
+        Metadata metadata = retrieve(path);
+        // A file that doesn't exist has no modification time to check the entry against.
+        if (metadata != null && modified != 0) {
+            synchronized (entries) {
+                entries.put(path, new Entry(modified, length, metadata));
+            }
+        }
+        return metadata;
+    }
+
+    private static Metadata retrieve(String path) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            return new Metadata(
+                    (int) parse(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH)),
+                    (int) parse(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT)),
+                    (int) parse(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE)),
+                    parse(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)));
+        } catch (RuntimeException e) {
+            // setDataSource() throws IllegalArgumentException or RuntimeException for unreadable files
+            Log.d(LOG_TAG, "Error: reading metadata of " + path, e);
+            return null;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    private static long parse(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
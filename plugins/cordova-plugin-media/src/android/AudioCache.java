@@ -0,0 +1,585 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * A read-through cache of remote audio files.
+ *
+ * The first play of a URL downloads it into the cache, and the player reads from the download
+ * as it arrives, so playback starts as soon as the first bytes are in. This needs Marshmallow's
+ * MediaDataSource; older versions stream every play from the server instead. Later plays use
+ * the complete file for as long as the server's Cache-Control max-age or Expires allows, and
+ * then ask the server with its ETag or Last-Modified whether the file changed. Files are only
+ * cached when the server tells their length and it fits in the cache; the least recently
+ * played files are deleted once the cache exceeds its maximum size.
+ */
+class AudioCache {
+    private static final String LOG_TAG = "AudioCache";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final String META_SUFFIX = ".meta";
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final File directory;
+    private final long maxSize;
+    private final ExecutorService executor;
+    private final HashMap<String, Download> downloads = new HashMap<String, Download>();
+
+    AudioCache(File directory, long maxSize, ExecutorService executor) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.executor = executor;
+
+        // Downloads that were cut short by the process dying can't be resumed.
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(PARTIAL_SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether plays of a URL go through the cache.
+     */
+    boolean canCache(String url) {
+        // Without MediaDataSource the player would stream the URL while the cache downloads it.
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && canFetch(url);
+    }
+
+    /**
+     * Whether a URL can be fetched into the cache ahead of playing it.
+     */
+    boolean canFetch(String url) {
+        return maxSize > 0 && (url.startsWith("http://") || url.startsWith("https://"));
+    }
+
+    /**
+     * Returns the cached file of a remote URL, downloading or revalidating it first if needed.
+     * Blocks until the file is complete, so must not be called on the UI thread.
+     *
+     * @return                  The complete file, or null if the server's response can't be cached
+     */
+    File fetch(String url) throws IOException {
+        File cached = getFreshFile(url);
+        if (cached != null) {
+            return cached;
+        }
+        Download download = startDownload(url);
+        return download.awaitEnd() ? download.complete : null;
+    }
+
+    /**
+     * Sets a remote URL as the data source of a player, from the cache where possible.
+     * Blocks until the server has answered, so must not be called on the UI thread.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    void setDataSource(MediaPlayer player, String url) throws IOException {
+        File cached = getFreshFile(url);
+        if (cached != null) {
+            setFileSource(player, cached);
+            return;
+        }
+
+        Download download = startDownload(url);
+        boolean readable = download.awaitResponse();
+        if (download.isNotModified() && download.complete.exists()) {
+            setFileSource(player, download.complete);
+            return;
+        }
+        if (readable) {
+            try {
+                player.setDataSource(new DownloadSource(download));
+                return;
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Could not read the download of " + url, e);
+            }
+        }
+        player.setDataSource(url);
+    }
+
+    private static void setFileSource(MediaPlayer player, File file) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            player.setDataSource(fileInputStream.getFD());
+        } finally {
+            fileInputStream.close();
+        }
+    }
+
+    /**
+     * Returns the complete cached file of a URL if the server allows it to be used without
+     * asking again, or null.
+     */
+    private synchronized File getFreshFile(String url) {
+        File file = new File(directory, hash(url));
+        if (!file.exists()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        String expires = readMeta(file).getProperty("expires");
+        try {
+            if (expires != null && System.currentTimeMillis() < Long.parseLong(expires)) {
+                return file;
+            }
+        } catch (NumberFormatException e) {
+            // Revalidate
+        }
+        return null;
+    }
+
+    private synchronized Download startDownload(String url) {
+        Download download = downloads.get(url);
+        if (download == null) {
+            String name = hash(url);
+            File complete = new File(directory, name);
+            // A stale file is kept unless the server sends a new one
+            Properties validators = complete.exists() ? readMeta(complete) : new Properties();
+            download = new Download(url, new File(directory, name + PARTIAL_SUFFIX), complete, validators);
+            downloads.put(url, download);
+            executor.execute(download);
+        }
+        return download;
+    }
+
+    private static File metaFile(File file) {
+        return new File(file.getPath() + META_SUFFIX);
+    }
+
+    /*
+     * Reads the validators and expiry stored with a cached file, which are empty if it has none.
+     */
+    private static Properties readMeta(File file) {
+        Properties meta = new Properties();
+        try {
+            InputStream in = new FileInputStream(metaFile(file));
+            try {
+                meta.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Treated as stale, without validators
+        }
+        return meta;
+    }
+
+    private static void writeMeta(File file, Properties meta) {
+        try {
+            OutputStream out = new FileOutputStream(metaFile(file));
+            try {
+                meta.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Could not store the validators of " + file, e);
+        }
+    }
+
+    /*
+     * Records the validators and expiry a response sent for a cached file. The expiry is taken
+     * from Cache-Control max-age, or else Expires; without either, the file is revalidated on
+     * every play.
+     */
+    private static void storeResponseMeta(File file, HttpURLConnection connection, Properties previous) {
+        Properties meta = new Properties();
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        // A 304 may leave out validators that haven't changed
+        if (etag == null) {
+            etag = previous.getProperty("etag");
+        }
+        if (lastModified == null) {
+            lastModified = previous.getProperty("lastModified");
+        }
+        if (etag != null) {
+            meta.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            meta.setProperty("lastModified", lastModified);
+        }
+        long expires = parseMaxAge(connection.getHeaderField("Cache-Control"));
+        if (expires >= 0) {
+            expires = System.currentTimeMillis() + expires * 1000;
+        } else {
+            expires = connection.getHeaderFieldDate("Expires", 0);
+        }
+        meta.setProperty("expires", Long.toString(expires));
+        writeMeta(file, meta);
+    }
+
+    /*
+     * Returns the max-age of a Cache-Control header in seconds, 0 if the response must be
+     * revalidated before every use, or -1 if it doesn't say.
+     */
+    private static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        long maxAge = -1;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase();
+            if (directive.equals("no-cache") || directive.equals("no-store")) {
+                return 0;
+            }
+            if (directive.startsWith("max-age=")) {
+                try {
+                    maxAge = Long.parseLong(directive.substring(8).replace("\"", ""));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    private synchronized void finishDownload(Download download) {
+        downloads.remove(download.url);
+        if (download.complete.exists()) {
+            evict(download.complete);
+        }
+    }
+
+    /*
+     * Deletes the least recently played files, other than keep, until the rest fit in maxSize.
+     */
+    private void evict(File keep) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(META_SUFFIX)) {
+                total += file.length();
+            }
+        }
+        if (total <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File oldest : files) {
+            if (total <= maxSize) {
+                break;
+            }
+            String name = oldest.getName();
+            if (!oldest.equals(keep) && !name.endsWith(PARTIAL_SUFFIX) && !name.endsWith(META_SUFFIX)) {
+                total -= oldest.length();
+                oldest.delete();
+                metaFile(oldest).delete();
+            }
+        }
+    }
+
+    /**
+     * Downloads a URL into a partial file, and lets readers wait for the bytes they need.
+     */
+    private class Download implements Runnable {
+        final String url;
+        final File partial;
+        final File complete;
+        // Of the stale file being revalidated, empty if there is none
+        private final Properties validators;
+
+        // Guarded by this
+        private boolean responded;
+        private boolean notModified;
+        private boolean cacheable;
+        private long length = -1;
+        private long available;
+        private boolean finished;
+        private IOException error;
+
+        Download(String url, File partial, File complete, Properties validators) {
+            this.url = url;
+            this.partial = partial;
+            this.complete = complete;
+            this.validators = validators;
+        }
+
+        public void run() {
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                String etag = validators.getProperty("etag");
+                String lastModified = validators.getProperty("lastModified");
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+                int responseCode = connection.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && complete.exists()) {
+                    storeResponseMeta(complete, connection, validators);
+                    synchronized (this) {
+                        notModified = true;
+                    }
+                    respond(false, -1);
+                    return;
+                }
+                long contentLength = responseCode == HttpURLConnection.HTTP_OK ?
+                        parseLength(connection.getHeaderField("Content-Length")) : -1;
+                if (responseCode == HttpURLConnection.HTTP_OK && complete.exists()) {
+                    // The server sent a new version; the stale one is no use whether or not
+                    // the new one can be cached.
+                    synchronized (AudioCache.this) {
+                        complete.delete();
+                        metaFile(complete).delete();
+                    }
+                }
+                if (contentLength <= 0 || contentLength > maxSize) {
+                    // Unknown lengths are often live streams, which would never finish.
+                    respond(false, -1);
+                    return;
+                }
+
+                directory.mkdirs();
+                OutputStream out = new FileOutputStream(partial);
+                try {
+                    respond(true, contentLength);
+                    InputStream in = connection.getInputStream();
+                    try {
+                        byte[] buffer = new byte[16 * 1024];
+                        int bytesRead;
+                        while ((bytesRead = in.read(buffer)) > 0) {
+                            out.write(buffer, 0, bytesRead);
+                            synchronized (this) {
+                                available += bytesRead;
+                                notifyAll();
+                            }
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } finally {
+                    out.close();
+                }
+
+                if (available != contentLength) {
+                    throw new IOException("Expected " + contentLength + " bytes but got " + available);
+                }
+                storeResponseMeta(complete, connection, new Properties());
+                if (!partial.renameTo(complete)) {
+                    metaFile(complete).delete();
+                    throw new IOException("Could not store " + url + " in the cache");
+                }
+                synchronized (this) {
+                    finished = true;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Could not cache " + url, e);
+                partial.delete();
+                synchronized (this) {
+                    error = e;
+                    responded = true;
+                    notifyAll();
+                }
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                finishDownload(this);
+            }
+        }
+
+        private synchronized void respond(boolean cacheable, long length) {
+            this.cacheable = cacheable;
+            this.length = length;
+            this.responded = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the server's response.
+         *
+         * @return                  true if the download can be read while it continues
+         */
+        synchronized boolean awaitResponse() throws IOException {
+            while (!responded) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            return cacheable && error == null;
+        }
+
+        /**
+         * Waits until the download has finished, or turned out not to be cacheable.
+         *
+         * @return                  true if the complete file is current
+         */
+        synchronized boolean awaitEnd() throws IOException {
+            while (!responded || (cacheable && !finished && error == null)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return (finished || notModified) && complete.exists();
+        }
+
+        /**
+         * Whether the server confirmed that the stale cached file is still current.
+         */
+        synchronized boolean isNotModified() {
+            return notModified;
+        }
+
+        synchronized long getLength() {
+            return length;
+        }
+
+        /**
+         * Waits until the byte at position has been downloaded, or the download has ended.
+         *
+         * @return                  The number of bytes available from position, or -1 at the end
+         */
+        synchronized long awaitBytes(long position) throws IOException {
+            while (available <= position && !finished && error == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (available > position) {
+                return available - position;
+            }
+            if (error != null) {
+                throw error;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Lets a player read a download while it is in progress.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static class DownloadSource extends MediaDataSource {
+        private final Download download;
+        private final RandomAccessFile file;
+
+        DownloadSource(Download download) throws IOException {
+            this.download = download;
+            // The partial file keeps its contents when it is renamed to the complete one.
+            RandomAccessFile file;
+            try {
+                file = new RandomAccessFile(download.partial, "r");
+            } catch (FileNotFoundException e) {
+                // Already renamed
+                file = new RandomAccessFile(download.complete, "r");
+            }
+            this.file = file;
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            long available = download.awaitBytes(position);
+            if (available < 0) {
+                return -1;
+            }
+            synchronized (file) {
+                file.seek(position);
+                return file.read(buffer, offset, (int) Math.min(size, available));
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return download.getLength();
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String hash(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Captures 16-bit mono PCM from the microphone and sends it to JavaScript as it is recorded.
+ *
+ * Samples are read into a ring buffer that is allocated once, and their RMS and peak levels are
+ * computed as they arrive. Every interval, the levels of the samples since the last message
+ * are sent, along with the samples themselves if frames were asked for. The interval bounds
+ * the rate of bridge messages no matter how often the recorder delivers samples.
+ *
+ * Only one message is in flight at a time: the next one waits until JavaScript reports that it
+ * received the previous one, and covers everything recorded meanwhile. The ring holds two
+ * intervals of samples, so when JavaScript falls further behind, the oldest samples are dropped
+ * rather than queued on the bridge.
+ */
+class AudioCapture implements Runnable {
+    private static final String LOG_TAG = "AudioCapture";
+    static final int MIN_INTERVAL = 20;
+    static final int MAX_INTERVAL = 1000;
+    private static final int READ_INTERVAL = 10;    // msec of audio read from the recorder at a time
+
+    private final int sampleRate;
+    private final int interval;
+    private final boolean sendFrames;
+    private final CallbackContext callbackContext;
+
+    private final short[] ring;
+    private final short[] chunk;
+    private long written;       // samples written to the ring since the capture started
+    private long sent;          // samples sent to JavaScript since the capture started
+
+    private AudioRecord record;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile boolean received = true;   // whether JavaScript got the last message
+
+    /**
+     * @param sampleRate        Samples per second
+     * @param interval          Msec between messages to JavaScript
+     * @param sendFrames        Whether messages carry the samples as well as their levels
+     */
+    AudioCapture(int sampleRate, int interval, boolean sendFrames, CallbackContext callbackContext) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("Invalid sample rate " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+        this.interval = Math.min(Math.max(interval, MIN_INTERVAL), MAX_INTERVAL);
+        this.sendFrames = sendFrames;
+        this.callbackContext = callbackContext;
+        // Room for two intervals, so a late message never finds its samples overwritten
+        this.ring = new short[sampleRate * this.interval * 2 / 1000];
+        this.chunk = new short[Math.max(sampleRate * READ_INTERVAL / 1000, 1)];
+    }
+
+    /**
+     * Start recording.
+     *
+     * @throws IllegalStateException if the microphone can't be opened
+     */
+    void start() {
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            throw new IllegalStateException("Unsupported sample rate " + sampleRate);
+        }
+        record = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBufferSize, ring.length * 2));
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            record.release();
+            record = null;
+            throw new IllegalStateException("Could not open the microphone");
+        }
+        record.startRecording();
+        running = true;
+        thread = new Thread(this, LOG_TAG);
+        thread.start();
+    }
+
+    /**
+     * Called when JavaScript has handled a message, so the next one may be sent.
+     */
+    void received() {
+        received = true;
+    }
+
+    /**
+     * Stop recording, and tell JavaScript no more messages will come.
+     */
+    void stop() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join(MAX_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        if (record != null) {
+            record.stop();
+            record.release();
+            record = null;
+        }
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+    }
+
+    public void run() {
+        double sumOfSquares = 0;
+        int peak = 0;
+        int count = 0;
+        long lastMessage = SystemClock.uptimeMillis();
+
+        while (running) {
+            int read = record.read(chunk, 0, chunk.length);
+            if (read < 0) {
+                Log.e(LOG_TAG, "AudioRecord.read() failed: " + read);
+                running = false;
+                PluginResult result = new PluginResult(PluginResult.Status.ERROR,
+                        AudioPlayer.createErrorObject(AudioPlayer.MEDIA_ERR_ABORTED));
+                result.setKeepCallback(true);
+                callbackContext.sendPluginResult(result);
+                break;
+            }
+
+            int position = (int) (written % ring.length);
+            for (int i = 0; i < read; i++) {
+                short sample = chunk[i];
+                ring[position] = sample;
+                if (++position == ring.length) {
+                    position = 0;
+                }
+                int magnitude = sample < 0 ? -sample : sample;
+                if (magnitude > peak) {
+                    peak = magnitude;
+                }
+                sumOfSquares += (double) sample * sample;
+            }
+            written += read;
+            count += read;
+
+            long now = SystemClock.uptimeMillis();
+            if (now - lastMessage >= interval && count > 0 && received) {
+                sendMessage(Math.sqrt(sumOfSquares / count) / 32768, peak / 32768.0, count);
+                sumOfSquares = 0;
+                peak = 0;
+                count = 0;
+                lastMessage = now;
+            }
+        }
+    }
+
+    private void sendMessage(double rms, double peak, int count) {
+        JSONObject levels = new JSONObject();
+        try {
+            levels.put("rms", rms);
+            levels.put("peak", peak);
+            levels.put("samples", count);
+            levels.put("sampleRate", sampleRate);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to create levels", e);
+        }
+
+        PluginResult result;
+        if (sendFrames) {
+            List<PluginResult> parts = new ArrayList<PluginResult>(2);
+            parts.add(new PluginResult(PluginResult.Status.OK, levels));
+            parts.add(new PluginResult(PluginResult.Status.OK, takeFrames()));
+            result = new PluginResult(PluginResult.Status.OK, parts);
+        } else {
+            sent = written;
+            result = new PluginResult(PluginResult.Status.OK, levels);
+        }
+        result.setKeepCallback(true);
+        received = false;
+        callbackContext.sendPluginResult(result);
+    }
+
+    /*
+     * Copies the samples written since the last message as little-endian 16-bit PCM.
+     */
+    private byte[] takeFrames() {
+        long from = Math.max(sent, written - ring.length);
+        byte[] frames = new byte[(int) (written - from) * 2];
+        int position = (int) (from % ring.length);
+        for (int i = 0; i < frames.length; i += 2) {
+            short sample = ring[position];
+            frames[i] = (byte) sample;
+            frames[i + 1] = (byte) (sample >> 8);
+            if (++position == ring.length) {
+                position = 0;
+            }
+        }
+        sent = written;
+        return frames;
+    }
+}
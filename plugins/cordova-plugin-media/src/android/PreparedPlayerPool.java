@@ -0,0 +1,77 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.media.MediaPlayer;
+
+/**
+ * MediaPlayers that are prepared and waiting at the start of their file, one per file.
+ *
+ * An AudioPlayer that starts a file with a player from the pool skips setDataSource() and
+ * prepare(). Players come from preloading and from released AudioPlayers; the least recently
+ * pooled ones are released once there are more than MAX_PLAYERS.
+ */
+class PreparedPlayerPool {
+    private static final int MAX_PLAYERS = 4;
+
+    private final LinkedHashMap<String, MediaPlayer> players = new LinkedHashMap<String, MediaPlayer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MediaPlayer> eldest) {
+            if (size() <= MAX_PLAYERS) {
+                return false;
+            }
+            eldest.getValue().release();
+            return true;
+        }
+    };
+
+    /**
+     * Removes the player prepared for a file from the pool.
+     *
+     * @return                  The player, or null if there is none
+     */
+    synchronized MediaPlayer take(String file) {
+        return players.remove(file);
+    }
+
+    synchronized boolean contains(String file) {
+        return players.containsKey(file);
+    }
+
+    /**
+     * Adds a player that is prepared and positioned at the start of its file.
+     */
+    synchronized void put(String file, MediaPlayer player) {
+        MediaPlayer previous = players.remove(file);
+        if (previous != null) {
+            previous.release();
+        }
+        players.put(file, player);
+    }
+
+    synchronized void clear() {
+        for (MediaPlayer player : players.values()) {
+            player.release();
+        }
+        players.clear();
+    }
+}
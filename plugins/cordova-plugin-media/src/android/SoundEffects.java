@@ -0,0 +1,189 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.cordova.CallbackContext;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.SoundPool;
+import android.os.Build;
+import android.os.Environment;
+
+/**
+ * Short clips decoded ahead of time, so they start without delay.
+ *
+ * Clips are loaded into a SoundPool, which keeps them as decoded samples and can play several
+ * at once. The least recently played clips are unloaded once more than MAX_SAMPLES are loaded.
+ */
+class SoundEffects implements SoundPool.OnLoadCompleteListener {
+    private static final int MAX_STREAMS = 4;
+    private static final int MAX_SAMPLES = 16;
+
+    private static final class Sample {
+        final int id;
+        final long duration;    // in milliseconds
+        boolean loaded;
+        CallbackContext callbackContext;
+
+        Sample(int id, long duration, CallbackContext callbackContext) {
+            this.id = id;
+            this.duration = duration;
+            this.callbackContext = callbackContext;
+        }
+    }
+
+    private final SoundPool pool;
+    private final HashMap<Integer, Sample> samplesById = new HashMap<Integer, Sample>();
+    private final LinkedHashMap<String, Sample> samples = new LinkedHashMap<String, Sample>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Sample> eldest) {
+            if (size() <= MAX_SAMPLES) {
+                return false;
+            }
+            samplesById.remove(eldest.getValue().id);
+            pool.unload(eldest.getValue().id);
+            return true;
+        }
+    };
+
+    @SuppressWarnings("deprecation")
+    SoundEffects() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            AudioAttributes attributes = new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                    .build();
+            this.pool = new SoundPool.Builder().setMaxStreams(MAX_STREAMS).setAudioAttributes(attributes).build();
+        } else {
+            this.pool = new SoundPool(MAX_STREAMS, AudioManager.STREAM_MUSIC, 0);
+        }
+        this.pool.setOnLoadCompleteListener(this);
+    }
+
+    /**
+     * Loads a clip, and reports to the callback once it can be played.
+     *
+     * @param file              The name of the audio file, as passed to AudioPlayer
+     * @param path              Where to read the clip from; differs from file for cached remote clips
+     * @param duration          The duration of the clip in msec
+     */
+    synchronized void load(String file, String path, long duration, Context context, CallbackContext callbackContext) throws IOException {
+        Sample sample = samples.get(file);
+        if (sample != null) {
+            if (sample.loaded) {
+                callbackContext.success();
+            } else {
+                sample.callbackContext = callbackContext;
+            }
+            return;
+        }
+
+        int id;
+        if (path.startsWith("/android_asset/")) {
+            AssetFileDescriptor fd = context.getAssets().openFd(path.substring(15));
+            try {
+                id = pool.load(fd, 1);
+            } finally {
+                // The pool keeps its own copy of the descriptor
+                fd.close();
+            }
+        } else if (new File(path).exists()) {
+            id = pool.load(path, 1);
+        } else {
+            id = pool.load(Environment.getExternalStorageDirectory().getPath() + "/" + path, 1);
+        }
+        sample = new Sample(id, duration, callbackContext);
+        samplesById.put(id, sample);
+        samples.put(file, sample);
+    }
+
+    public synchronized void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+        Sample sample = samplesById.get(sampleId);
+        if (sample == null) {
+            return;
+        }
+        if (status == 0) {
+            sample.loaded = true;
+            if (sample.callbackContext != null) {
+                sample.callbackContext.success();
+            }
+        } else {
+            samplesById.remove(sampleId);
+            samples.values().remove(sample);
+            if (sample.callbackContext != null) {
+                sample.callbackContext.error(AudioPlayer.createErrorObject(AudioPlayer.MEDIA_ERR_DECODE));
+            }
+        }
+        sample.callbackContext = null;
+    }
+
+    /**
+     * Get the duration of a loaded clip.
+     *
+     * @return                  The duration in msec, or -1 if the clip isn't loaded
+     */
+    synchronized long getDuration(String file) {
+        Sample sample = samples.get(file);
+        return sample != null && sample.loaded ? sample.duration : -1;
+    }
+
+    /**
+     * Start playing a loaded clip.
+     *
+     * @return                  The stream playing the clip, or 0 if it isn't loaded
+     */
+    synchronized int play(String file, float volume) {
+        Sample sample = samples.get(file);
+        if (sample == null || !sample.loaded) {
+            return 0;
+        }
+        return pool.play(sample.id, volume, volume, 1, 0, 1.0f);
+    }
+
+    void pause(int stream) {
+        pool.pause(stream);
+    }
+
+    void resume(int stream) {
+        pool.resume(stream);
+    }
+
+    void stop(int stream) {
+        pool.stop(stream);
+    }
+
+    void setVolume(int stream, float volume) {
+        pool.setVolume(stream, volume, volume);
+    }
+
+    synchronized void release() {
+        pool.release();
+        samples.clear();
+        samplesById.clear();
+    }
+}
@@ -69,6 +69,54 @@ Media.get = function(id) {
     return mediaObjects[id];
 };
 
+/**
+ * Prepare an audio file so that playing it starts without delay.
+ *
+ * @param src                   The file name to preload
+ * @param successCallback       The callback to be called once the file is ready to play
+ * @param errorCallback         The callback to be called if it can't be preloaded - OPTIONAL
+ */
+Media.preload = function(src, successCallback, errorCallback) {
+    argscheck.checkArgs('sFF', 'Media.preload', arguments);
+    exec(successCallback, errorCallback, "Media", "preloadAudio", [src]);
+};
+
+/**
+ * Get how many plays started from preloaded audio ("warm") and how many had to
+ * prepare their file first ("cold").
+ */
+Media.getStartStats = function(successCallback, errorCallback) {
+    exec(successCallback, errorCallback, "Media", "getStartStats", []);
+};
+
+/**
+ * Start sending the microphone's levels, and optionally its samples, at a regular interval.
+ *
+ * @param successCallback       The callback to be called with the levels, and the samples as
+ *                              an ArrayBuffer of 16-bit little-endian PCM if frames are on
+ * @param errorCallback         The callback to be called if the microphone can't be read - OPTIONAL
+ * @param options               {sampleRate, interval (msec), frames (boolean)} - OPTIONAL
+ */
+Media.startCapture = function(successCallback, errorCallback, options) {
+    argscheck.checkArgs('fFO', 'Media.startCapture', arguments);
+    // Tell the native side each message was handled, so it can send the next one
+    var received = function(levels, frames) {
+        try {
+            successCallback(levels, frames);
+        } finally {
+            exec(null, null, "Media", "captureReceived", []);
+        }
+    };
+    exec(received, errorCallback, "Media", "startCapture", [options || {}]);
+};
+
+/**
+ * Stop the microphone capture started by Media.startCapture.
+ */
+Media.stopCapture = function(successCallback, errorCallback) {
+    exec(successCallback, errorCallback, "Media", "stopCapture", []);
+};
+
 /**
  * Start or resume playing audio file.
  */
@@ -115,15 +163,46 @@ Media.prototype.getDuration = function() {
 
 /**
  * Get position of audio.
+ * While the position is watched, it is known without asking the native side.
  */
 Media.prototype.getCurrentPosition = function(success, fail) {
     var me = this;
+    if (this._positionWatched) {
+        success(this._position);
+        return;
+    }
     exec(function(p) {
         me._position = p;
         success(p);
     }, fail, "Media", "getCurrentPositionAudio", [this.id]);
 };
 
+/**
+ * Get the position of audio pushed at a regular interval while it plays,
+ * instead of polling getCurrentPosition.
+ *
+ * @param positionCallback      The callback to be called with the position in seconds
+ *                                  positionCallback(float position)
+ * @param interval              Milliseconds between updates, 250 by default - OPTIONAL
+ */
+Media.prototype.watchPosition = function(positionCallback, interval) {
+    var me = this;
+    this._positionCallback = positionCallback;
+    // Platforms without native updates keep polling in getCurrentPosition
+    exec(function() {
+        me._positionWatched = true;
+    }, null, "Media", "setPositionUpdates", [this.id, interval || 250]);
+};
+
+/**
+ * Stop the position updates started by watchPosition.
+ */
+Media.prototype.clearWatchPosition = function() {
+    this._positionCallback = null;
+    this._positionWatched = false;
+    exec(null, null, "Media", "setPositionUpdates", [this.id, 0]);
+};
+
 /**
  * Start recording audio file.
  */
@@ -192,6 +271,7 @@ Media.onStatus = function(id, msgType, value) {
                 break;
             case Media.MEDIA_POSITION :
                 media._position = Number(value);
+                media._positionCallback && media._positionCallback(media._position);
                 break;
             default :
                 console.error && console.error("Unhandled Media.onStatus :: " + msgType);